@@ -22,6 +22,8 @@ import java.util.Arrays;
 import javax.annotation.Nonnegative;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import frequency.BloomSizing;
+
 /**
  * A Bloom filter is a space and time efficient probabilistic data structure that is used to test
  * whether an element is a member of a set. False positives are possible, but false negatives are
@@ -37,12 +39,12 @@ public final class CaffeinBloomFilter1 implements CaffeinBloomFilter {
 		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
 	static final int BITS_PER_LONG_SHIFT = 6; // 64-bits
 	static final int INDEX_MASK = Long.SIZE - 1;
-
-	static final double FPP = 0.03; // false positive probability
-	static final double LOG_OF_2 = Math.log(2);
-	static final double OPTIMAL_BITS_FACTOR = -Math.log(FPP) / (LOG_OF_2 * LOG_OF_2);
+	static final int MAX_TABLE_SIZE = 1 << 30; // the largest power of two usable as array length
 
 	final int randomSeed;
+	final double bitsPerElement;
+	/** The number of bits set per element, twice the number of words given by {@link BloomSizing}. */
+	final int probes;
 
 	int tableMask;
 	long[] table;
@@ -55,7 +57,18 @@ public final class CaffeinBloomFilter1 implements CaffeinBloomFilter {
 	 * @param randomSeed the smear to protect against hash flooding
 	 */
 	public CaffeinBloomFilter1(@Nonnegative long expectedInsertions, int randomSeed) {
+		this(expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	/**
+	 * @param expectedInsertions the number of expected insertions
+	 * @param randomSeed the smear to protect against hash flooding
+	 * @param fpp the target false positive probability
+	 */
+	public CaffeinBloomFilter1(@Nonnegative long expectedInsertions, int randomSeed, double fpp) {
 		this.randomSeed = randomSeed;
+		bitsPerElement = BloomSizing.bitsPerElement(fpp);
+		probes = 2 * BloomSizing.probedWords(fpp);
 		checkArgument(randomSeed != 0);
 		ensureCapacity(expectedInsertions);
 		//		Dout.a(Math.log(expectedInsertions) / Math.log(2), IntMath.log2(table.length, RoundingMode.UNNECESSARY));
@@ -71,8 +84,8 @@ public final class CaffeinBloomFilter1 implements CaffeinBloomFilter {
 	public void ensureCapacity(@Nonnegative long expectedInsertions) {
 		checkArgument(expectedInsertions >= 0);
 
-		final int optimalNumberOfBits = (int) (expectedInsertions * OPTIMAL_BITS_FACTOR);
-		final int optimalSize = optimalNumberOfBits >>> BITS_PER_LONG_SHIFT;
+		final long optimalNumberOfBits = (long) (expectedInsertions * bitsPerElement);
+		final int optimalSize = (int) Math.min(optimalNumberOfBits >>> BITS_PER_LONG_SHIFT, MAX_TABLE_SIZE);
 		if ((table != null) && (table.length >= optimalSize)) {
 			return;
 		} else if (optimalSize == 0) {
@@ -94,7 +107,7 @@ public final class CaffeinBloomFilter1 implements CaffeinBloomFilter {
 	@Override
 	public boolean mightContain(long e) {
 		final int item = spread(Long_hashCode(e));
-		for (int i = 0; i < 4; i++) {
+		for (int i = 0; i < probes; i++) {
 			final int hash = seeded(item, i);
 			final int index = hash & tableMask;
 			if ((table[index] & bitmask(hash)) == 0L) {
@@ -118,10 +131,7 @@ public final class CaffeinBloomFilter1 implements CaffeinBloomFilter {
 	@Override
 	public void put(long e) {
 		final int item = spread(Long_hashCode(e));
-		setAt(item, 0);
-		setAt(item, 1);
-		setAt(item, 2);
-		setAt(item, 3);
+		for (int i = 0; i < probes; i++) setAt(item, i);
 	}
 
 	private int Long_hashCode(long e) {
@@ -159,7 +169,8 @@ public final class CaffeinBloomFilter1 implements CaffeinBloomFilter {
 	 * @return the table index
 	 */
 	static int seeded(int item, int i) {
-		long hash = SEED[i] * item;
+		// Beyond the four seeds, the item gets varied.
+		long hash = SEED[i & 3] * (item ^ (i >>> 2) * 0x9e3779b9L);
 		hash += hash >> 32;
 		return (int) hash;
 	}
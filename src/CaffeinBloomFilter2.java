@@ -22,6 +22,8 @@ import java.util.Arrays;
 import javax.annotation.Nonnegative;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import frequency.BloomSizing;
+
 /**
  * A Bloom filter is a space and time efficient probabilistic data structure that is used to test
  * whether an element is a member of a set. False positives are possible, but false negatives are
@@ -37,12 +39,12 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
 	static final int BITS_PER_LONG_SHIFT = 6; // 64-bits
 	static final int INDEX_MASK = Long.SIZE - 1;
-
-	static final double FPP = 0.03; // false positive probability
-	static final double LOG_OF_2 = Math.log(2);
-	static final double OPTIMAL_BITS_FACTOR = -Math.log(FPP) / (LOG_OF_2 * LOG_OF_2);
+	static final int MAX_TABLE_SIZE = 1 << 30; // the largest power of two usable as array length
 
 	final int randomSeed;
+	final double bitsPerElement;
+	/** The number of bits set per element, twice the number of words given by {@link BloomSizing}. */
+	final int probes;
 
 	int tableMask;
 	long[] table;
@@ -55,7 +57,18 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 	 * @param randomSeed the smear to protect against hash flooding
 	 */
 	public CaffeinBloomFilter2(@Nonnegative long expectedInsertions, int randomSeed) {
+		this(expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	/**
+	 * @param expectedInsertions the number of expected insertions
+	 * @param randomSeed the smear to protect against hash flooding
+	 * @param fpp the target false positive probability
+	 */
+	public CaffeinBloomFilter2(@Nonnegative long expectedInsertions, int randomSeed, double fpp) {
 		this.randomSeed = randomSeed | 1;
+		bitsPerElement = BloomSizing.bitsPerElement(fpp);
+		probes = 2 * BloomSizing.probedWords(fpp);
 		checkArgument(randomSeed != 0);
 		ensureCapacity(expectedInsertions);
 	}
@@ -70,8 +83,8 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 	public void ensureCapacity(@Nonnegative long expectedInsertions) {
 		checkArgument(expectedInsertions >= 0);
 
-		final int optimalNumberOfBits = (int) (expectedInsertions * OPTIMAL_BITS_FACTOR);
-		final int optimalSize = optimalNumberOfBits >>> BITS_PER_LONG_SHIFT;
+		final long optimalNumberOfBits = (long) (expectedInsertions * bitsPerElement);
+		final int optimalSize = (int) Math.min(optimalNumberOfBits >>> BITS_PER_LONG_SHIFT, MAX_TABLE_SIZE);
 		if ((table != null) && (table.length >= optimalSize)) {
 			return;
 		} else if (optimalSize == 0) {
@@ -93,7 +106,7 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 	@Override
 	public boolean mightContain(long e) {
 		e = spread(e);
-		for (int i = 0; i < 4; i++) {
+		for (int i = 0; i < probes; i++) {
 			e = respread(e, i);
 			if (!getAt(e, i)) return false;
 		}
@@ -114,7 +127,7 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 	@Override
 	public void put(long e) {
 		e = spread(e);
-		for (int i = 0; i < 4; i++) {
+		for (int i = 0; i < probes; i++) {
 			e = respread(e, i);
 			setAt(e, i);
 		}
@@ -152,7 +165,7 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 	}
 
 	private long respread(long e, int index) {
-		e *= SEED[index];
+		e *= SEED[index & 3];
 		e ^= (e >>> 21) ^ (e >>> 41);
 		return e;
 	}
@@ -165,7 +178,7 @@ public final class CaffeinBloomFilter2 implements CaffeinBloomFilter {
 	 * @return the table index
 	 */
 	static long seeded(long item, int i) {
-		long e = SEED[i] * item;
+		long e = SEED[i & 3] * item;
 		e ^= (e >>> 21) ^ (e >>> 41);
 		return e;
 	}
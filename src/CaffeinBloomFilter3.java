@@ -17,11 +17,22 @@
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.nio.LongBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.LongStream;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import frequency.BloomSizing;
+import frequency.ParallelBloomLoader;
+
 /**
  * A Bloom filter is a space and time efficient probabilistic data structure that is used to test
  * whether an element is a member of a set. False positives are possible, but false negatives are
@@ -35,12 +46,12 @@ import javax.annotation.concurrent.NotThreadSafe;
 public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	static final int BITS_PER_LONG_SHIFT = 6; // 64-bits
 	static final int INDEX_MASK = Long.SIZE - 1;
-
-	static final double FPP = 0.03; // false positive probability
-	static final double LOG_OF_2 = Math.log(2);
-	static final double OPTIMAL_BITS_FACTOR = -Math.log(FPP) / (LOG_OF_2 * LOG_OF_2);
+	static final int MAX_TABLE_SIZE = 1 << 30; // the largest power of two usable as array length
 
 	final int randomSeed;
+	final double bitsPerElement;
+	/** The number of words probed, each with two bits, see {@link BloomSizing}. */
+	final int probedWords;
 
 	int tableMask;
 	int tableShift;
@@ -54,7 +65,18 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	 * @param randomSeed the smear to protect against hash flooding
 	 */
 	public CaffeinBloomFilter3(@Nonnegative long expectedInsertions, int randomSeed) {
+		this(expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	/**
+	 * @param expectedInsertions the number of expected insertions
+	 * @param randomSeed the smear to protect against hash flooding
+	 * @param fpp the target false positive probability
+	 */
+	public CaffeinBloomFilter3(@Nonnegative long expectedInsertions, int randomSeed, double fpp) {
 		this.randomSeed = 2*randomSeed + 1;
+		bitsPerElement = BloomSizing.bitsPerElement(fpp);
+		probedWords = BloomSizing.probedWords(fpp);
 		ensureCapacity(expectedInsertions);
 	}
 
@@ -68,8 +90,8 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	public void ensureCapacity(@Nonnegative long expectedInsertions) {
 		checkArgument(expectedInsertions >= 0);
 
-		final int optimalNumberOfBits = (int) (expectedInsertions * OPTIMAL_BITS_FACTOR);
-		final int optimalSize = Math.max(optimalNumberOfBits >>> BITS_PER_LONG_SHIFT, 2);
+		final long optimalNumberOfBits = (long) (expectedInsertions * bitsPerElement);
+		final int optimalSize = (int) Math.max(Math.min(optimalNumberOfBits >>> BITS_PER_LONG_SHIFT, MAX_TABLE_SIZE), 2);
 		if ((table != null) && (table.length >= optimalSize)) {
 			return;
 		}
@@ -88,13 +110,136 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	 */
 	@Override
 	public boolean mightContain(long e) {
-		e = spread(e);
-		if (!getTwo(e)) return false;
-		e = respread(e);
-		if (!getTwo(e)) return false;
+		return mightContain(table, tableShift, probedWords, spread(e));
+	}
+
+	/** Returns if all words probed for the spread element contain both their bits. */
+	static boolean mightContain(long[] table, int tableShift, int probedWords, long e) {
+		if (!getTwo(table, tableShift, e)) return false;
+		for (int i = 1; i < probedWords; i++) {
+			e = respread(e);
+			if (!getTwo(table, tableShift, e)) return false;
+		}
 		return true;
 	}
 
+	/**
+	 * Returns an immutable snapshot of this filter, which can be shared among threads without any
+	 * synchronization. Subsequent changes to this filter don't affect the snapshot.
+	 */
+	public FrozenCaffeinBloomFilter freeze() {
+		return freeze(0);
+	}
+
+	/**
+	 * Returns an immutable snapshot of this filter like {@link #freeze()} does, but halves its table
+	 * as long as the fraction of set bits stays at most {@code maxFillRatio}. Folding loses no
+	 * elements, but increases the false positive probability. An optimally loaded filter has a fill
+	 * ratio of about one half, so a filter which got far less insertions than expected can be folded.
+	 *
+	 * @param maxFillRatio the maximum fraction of set bits in the folded table
+	 */
+	public FrozenCaffeinBloomFilter freeze(double maxFillRatio) {
+		long[] result = table.clone();
+		int shift = tableShift;
+		// The minimum size is 2 in order for tableShift to work.
+		while (result.length > 2) {
+			final long[] folded = fold(result);
+			if (fillRatio(folded) > maxFillRatio) break;
+			result = folded;
+			++shift;
+		}
+		return new FrozenCaffeinBloomFilter(result, shift, randomSeed, probedWords);
+	}
+
+	/**
+	 * Halves the table by ORing neighboring words, which is exactly what a table of half the size
+	 * would contain, as the index gets computed from the topmost bits.
+	 */
+	private static long[] fold(long[] table) {
+		final long[] result = new long[table.length >> 1];
+		for (int i = 0; i < result.length; i++) result[i] = table[2 * i] | table[2 * i + 1];
+		return result;
+	}
+
+	static double fillRatio(long[] table) {
+		long bits = 0;
+		for (final long x : table) bits += Long.bitCount(x);
+		return (double) bits / ((long) table.length * Long.SIZE);
+	}
+
+	/**
+	 * Adds all elements of the other filter to this one by ORing the tables, which gives exactly the
+	 * same table as putting them one by one.
+	 *
+	 * @param other a filter with the same seed and table size
+	 */
+	public void merge(CaffeinBloomFilter3 other) {
+		checkArgument(other.randomSeed == randomSeed && other.table.length == table.length
+				&& other.probedWords == probedWords,
+				"Incompatible filters.");
+		final long[] otherTable = other.table;
+		for (int i = 0; i < table.length; i++) table[i] |= otherTable[i];
+	}
+
+	/**
+	 * Returns a collector building one filter per split of a (possibly parallel) stream and merging
+	 * them. The result is identical to putting the elements one by one.
+	 */
+	public static Collector<Long, ?, CaffeinBloomFilter3> toFilter(
+			@Nonnegative final long expectedInsertions, final int randomSeed) {
+		return toFilter(expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	/** Like {@link #toFilter(long, int)}, but with the given target false positive probability. */
+	public static Collector<Long, ?, CaffeinBloomFilter3> toFilter(
+			@Nonnegative final long expectedInsertions, final int randomSeed, final double fpp) {
+		return Collector.of(supplier(expectedInsertions, randomSeed, fpp),
+				new BiConsumer<CaffeinBloomFilter3, Long>() {
+					@Override public void accept(CaffeinBloomFilter3 filter, Long e) {
+						filter.put(e);
+					}
+				},
+				new BinaryOperator<CaffeinBloomFilter3>() {
+					@Override public CaffeinBloomFilter3 apply(CaffeinBloomFilter3 a, CaffeinBloomFilter3 b) {
+						a.merge(b);
+						return a;
+					}
+				},
+				Collector.Characteristics.IDENTITY_FINISH, Collector.Characteristics.UNORDERED);
+	}
+
+	/** Builds a filter from the stream without boxing, like {@link #toFilter(long, int)} does. */
+	public static CaffeinBloomFilter3 of(LongStream keys, @Nonnegative final long expectedInsertions,
+			final int randomSeed) {
+		return of(keys, expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	/** Like {@link #of(LongStream, long, int)}, but with the given target false positive probability. */
+	public static CaffeinBloomFilter3 of(LongStream keys, @Nonnegative final long expectedInsertions,
+			final int randomSeed, final double fpp) {
+		return keys.collect(supplier(expectedInsertions, randomSeed, fpp),
+				new ObjLongConsumer<CaffeinBloomFilter3>() {
+					@Override public void accept(CaffeinBloomFilter3 filter, long e) {
+						filter.put(e);
+					}
+				},
+				new BiConsumer<CaffeinBloomFilter3, CaffeinBloomFilter3>() {
+					@Override public void accept(CaffeinBloomFilter3 a, CaffeinBloomFilter3 b) {
+						a.merge(b);
+					}
+				});
+	}
+
+	private static Supplier<CaffeinBloomFilter3> supplier(final long expectedInsertions, final int randomSeed,
+			final double fpp) {
+		return new Supplier<CaffeinBloomFilter3>() {
+			@Override public CaffeinBloomFilter3 get() {
+				return new CaffeinBloomFilter3(expectedInsertions, randomSeed, fpp);
+			}
+		};
+	}
+
 	/** Removes all of the elements from this collection. */
 	public void clear() {
 		Arrays.fill(table, 0L);
@@ -108,18 +253,49 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	 */
 	@Override
 	public void put(long e) {
+		putInto(table, e);
+	}
+
+	/**
+	 * Puts all elements into this collection using all threads of the common pool.
+	 * The result is identical to putting them one by one.
+	 *
+	 * @param keys the elements to add
+	 */
+	public void putAll(long[] keys) {
+		putAll(LongBuffer.wrap(keys), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Puts all elements between the position and the limit of the buffer into this collection using
+	 * all threads of the pool. The buffer may be a view of a memory-mapped file.
+	 * The result is identical to putting them one by one.
+	 *
+	 * @param keys the elements to add
+	 */
+	public void putAll(LongBuffer keys, ForkJoinPool pool) {
+		ParallelBloomLoader.putAll(table, keys, new ParallelBloomLoader.KeySetter() {
+			@Override public void set(long[] table, long e) {
+				putInto(table, e);
+			}
+		}, pool);
+	}
+
+	private void putInto(long[] table, long e) {
 		e = spread(e);
-		setTwo(e);
-		e = respread(e);
-		setTwo(e);
+		setTwo(table, e);
+		for (int i = 1; i < probedWords; i++) {
+			e = respread(e);
+			setTwo(table, e);
+		}
 	}
 
-	private void setTwo(long e) {
+	private void setTwo(long[] table, long e) {
 		table[index(e)] |= (Long.MIN_VALUE >>> e) | (Long.MIN_VALUE >>> altShiftDistance(e));
 	}
 
-	private boolean getTwo(long e) {
-		final long entry = table[index(e)];
+	static boolean getTwo(long[] table, int tableShift, long e) {
+		final long entry = table[(int) (e >>> tableShift)];
 		final long result = (entry << e) & (entry << altShiftDistance(e));
 		return result < 0;
 	}
@@ -128,7 +304,7 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 		return (int) (e >>> tableShift);
 	}
 
-	private long altShiftDistance(long e) {
+	private static long altShiftDistance(long e) {
 		return e >> BITS_PER_LONG_SHIFT;
 	}
 
@@ -137,6 +313,10 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	 * hash functions.
 	 */
 	long spread(long e) {
+		return spread(e, randomSeed);
+	}
+
+	static long spread(long e, int randomSeed) {
 		e ^= (e >>> 21) ^ (e >>> 41); // On a typical superscalar CPU it doesn't take longer than xoring with a single shift.
 		e *= 0xc3a5c85c97cb3127L;
 		e ^= (e >>> 21) ^ (e >>> 41);
@@ -148,7 +328,7 @@ public final class CaffeinBloomFilter3 implements CaffeinBloomFilter {
 	/**
 	 * A simpler version of {@link #spread(long)}.
 	 */
-	private long respread(long e) {
+	static long respread(long e) {
 		e *= 0xb492b66fbe98f273L;
 		e ^= (e >>> 21) ^ (e >>> 41);
 		return e;
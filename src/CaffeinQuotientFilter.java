@@ -0,0 +1,65 @@
+import static com.google.common.base.Preconditions.checkArgument;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import frequency.BloomSizing;
+import frequency.QuotientFilter;
+
+/**
+ * A {@link CaffeinBloomFilter} backed by a {@link QuotientFilter}, which can grow without the keys,
+ * be merged and count the elements. The filters can't be the same class, as their {@code put}
+ * methods differ in the return type.
+ */
+@NotThreadSafe
+public final class CaffeinQuotientFilter implements CaffeinBloomFilter {
+	final int randomSeed;
+	final QuotientFilter filter;
+
+	/**
+	 * @param expectedInsertions the number of expected insertions
+	 * @param randomSeed the smear to protect against hash flooding
+	 * @param fpp the target false positive probability
+	 */
+	public CaffeinQuotientFilter(@Nonnegative long expectedInsertions, int randomSeed, double fpp) {
+		this.randomSeed = 2*randomSeed + 1;
+		filter = new QuotientFilter(expectedInsertions, QuotientFilter.remainderBits(fpp));
+	}
+
+	public CaffeinQuotientFilter(@Nonnegative long expectedInsertions, int randomSeed) {
+		this(expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	@Override
+	public void put(long e) {
+		filter.put(spread(e));
+	}
+
+	@Override
+	public boolean mightContain(long e) {
+		return filter.mightContain(spread(e));
+	}
+
+	/** Returns the approximate number of times the element was put, see {@link QuotientFilter#frequency}. */
+	public int count(long e) {
+		return filter.frequency(spread(e));
+	}
+
+	/**
+	 * Adds the elements of the other filter to this one.
+	 *
+	 * @param other a filter with the same seed and size
+	 */
+	public void merge(CaffeinQuotientFilter other) {
+		checkArgument(other.randomSeed == randomSeed, "Incompatible filters.");
+		filter.merge(other.filter);
+	}
+
+	public void clear() {
+		filter.clear();
+	}
+
+	private long spread(long e) {
+		return CaffeinBloomFilter3.spread(e, randomSeed);
+	}
+}
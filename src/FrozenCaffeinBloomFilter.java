@@ -0,0 +1,50 @@
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable snapshot of a {@link CaffeinBloomFilter3} obtained via
+ * {@link CaffeinBloomFilter3#freeze()}. All fields are final, so it can be safely published and
+ * queried by any number of threads without synchronization.
+ */
+@Immutable
+public final class FrozenCaffeinBloomFilter implements CaffeinBloomFilter {
+	final long[] table;
+	final int tableShift;
+	final int randomSeed;
+	final int probedWords;
+
+	FrozenCaffeinBloomFilter(long[] table, int tableShift, int randomSeed, int probedWords) {
+		this.table = table;
+		this.tableShift = tableShift;
+		this.randomSeed = randomSeed;
+		this.probedWords = probedWords;
+	}
+
+	/**
+	 * Returns if the element <i>might</i> have been put in the original Bloom filter before it got
+	 * frozen, {@code false} if this is <i>definitely</i> not the case.
+	 *
+	 * @param e the element whose presence is to be tested
+	 * @return if the element might be present
+	 */
+	@Override
+	public boolean mightContain(long e) {
+		return CaffeinBloomFilter3.mightContain(table, tableShift, probedWords,
+				CaffeinBloomFilter3.spread(e, randomSeed));
+	}
+
+	/** @throws UnsupportedOperationException always */
+	@Override
+	public void put(long e) {
+		throw new UnsupportedOperationException("A frozen filter can't be changed.");
+	}
+
+	/** Returns the fraction of set bits. */
+	public double fillRatio() {
+		return CaffeinBloomFilter3.fillRatio(table);
+	}
+
+	/** Returns the memory used by the table. */
+	public long sizeInBytes() {
+		return (long) table.length * Long.BYTES;
+	}
+}
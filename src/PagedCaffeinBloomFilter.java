@@ -0,0 +1,132 @@
+import static com.google.common.base.Preconditions.checkArgument;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import frequency.BloomSizing;
+
+/**
+ * A variant of {@link CaffeinBloomFilter3} for tables exceeding the maximum array length, i.e.,
+ * more than 2**36 bits or about nine billion insertions. The table gets split into pages of equal
+ * size and the word index gets computed from the topmost bits just like in the original, so that
+ * its upper part selects the page. For the same capacity, both filters set exactly the same bits.
+ *
+ * @author ben.manes@gmail.com (Ben Manes)
+ */
+@NotThreadSafe
+public final class PagedCaffeinBloomFilter implements CaffeinBloomFilter {
+	static final int DEFAULT_PAGE_SHIFT = 24; // 128 MB per page
+	static final long MAX_TABLE_SIZE = 1L << 40;
+
+	final int randomSeed;
+	final int maxPageShift;
+	final double bitsPerElement;
+	/** The number of words probed, each with two bits, see {@link BloomSizing}. */
+	final int probedWords;
+
+	/** A value such that x >>> tableShift is a valid word index for any long x. */
+	int tableShift;
+	/** The binary logarithm of the page length. */
+	int pageShift;
+	int offsetMask;
+	long[][] pages;
+
+	/**
+	 * @param expectedInsertions the number of expected insertions
+	 * @param randomSeed the smear to protect against hash flooding
+	 */
+	public PagedCaffeinBloomFilter(@Nonnegative long expectedInsertions, int randomSeed) {
+		this(expectedInsertions, randomSeed, BloomSizing.DEFAULT_FPP);
+	}
+
+	/**
+	 * @param expectedInsertions the number of expected insertions
+	 * @param randomSeed the smear to protect against hash flooding
+	 * @param fpp the target false positive probability
+	 */
+	public PagedCaffeinBloomFilter(@Nonnegative long expectedInsertions, int randomSeed, double fpp) {
+		this(expectedInsertions, randomSeed, fpp, DEFAULT_PAGE_SHIFT);
+	}
+
+	PagedCaffeinBloomFilter(@Nonnegative long expectedInsertions, int randomSeed, double fpp, int maxPageShift) {
+		this.randomSeed = 2*randomSeed + 1;
+		this.maxPageShift = maxPageShift;
+		bitsPerElement = BloomSizing.bitsPerElement(fpp);
+		probedWords = BloomSizing.probedWords(fpp);
+		ensureCapacity(expectedInsertions);
+	}
+
+	/**
+	 * Initializes and increases the capacity of this <tt>BloomFilter</tt> instance, if necessary,
+	 * to ensure that it can accurately estimate the membership of elements given the expected
+	 * number of insertions.
+	 *
+	 * @param expectedInsertions the number of expected insertions
+	 */
+	public void ensureCapacity(@Nonnegative long expectedInsertions) {
+		checkArgument(expectedInsertions >= 0);
+
+		final long optimalNumberOfBits = (long) (expectedInsertions * bitsPerElement);
+		final long optimalSize = Math.max(Math.min(optimalNumberOfBits >>> CaffeinBloomFilter3.BITS_PER_LONG_SHIFT,
+				MAX_TABLE_SIZE), 2);
+		if ((pages != null) && (tableLength() >= optimalSize)) {
+			return;
+		}
+
+		final long tableLength = Long.highestOneBit(optimalSize - 1) << 1;
+		final int pageLength = (int) Math.min(tableLength, 1 << maxPageShift);
+		pages = new long[(int) (tableLength / pageLength)][pageLength];
+		tableShift = Long.numberOfLeadingZeros(tableLength - 1);
+		pageShift = Integer.numberOfTrailingZeros(pageLength);
+		offsetMask = pageLength - 1;
+	}
+
+	/** Returns the total number of words of all pages. */
+	public long tableLength() {
+		return (long) pages.length * pages[0].length;
+	}
+
+	@Override
+	public boolean mightContain(long e) {
+		e = CaffeinBloomFilter3.spread(e, randomSeed);
+		if (!getTwo(e)) return false;
+		for (int i = 1; i < probedWords; i++) {
+			e = CaffeinBloomFilter3.respread(e);
+			if (!getTwo(e)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void put(long e) {
+		e = CaffeinBloomFilter3.spread(e, randomSeed);
+		setTwo(e);
+		for (int i = 1; i < probedWords; i++) {
+			e = CaffeinBloomFilter3.respread(e);
+			setTwo(e);
+		}
+	}
+
+	private void setTwo(long e) {
+		page(e)[offset(e)] |= (Long.MIN_VALUE >>> e) | (Long.MIN_VALUE >>> altShiftDistance(e));
+	}
+
+	private boolean getTwo(long e) {
+		final long entry = page(e)[offset(e)];
+		final long result = (entry << e) & (entry << altShiftDistance(e));
+		return result < 0;
+	}
+
+	private long[] page(long e) {
+		// Shifting twice avoids special-casing a single page, where a single shift would be by 64.
+		return pages[(int) ((e >>> tableShift) >>> pageShift)];
+	}
+
+	private int offset(long e) {
+		return (int) (e >>> tableShift) & offsetMask;
+	}
+
+	private static long altShiftDistance(long e) {
+		return e >> CaffeinBloomFilter3.BITS_PER_LONG_SHIFT;
+	}
+}
@@ -0,0 +1,235 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import lombok.Getter;
+
+/**
+ * Measures the error of a sketch chain in production by tracking exact counts of a small sample
+ * of the keys next to it. A key gets sampled when its hash under a seed unrelated to the sketch
+ * has its lowest bits zero, so that a key is either always or never sampled. The sample lives in
+ * an open addressing table of primitives and stops accepting new keys when full.
+ *
+ * <p>The exact counts age like the count-min counters: They get halved whenever the sketch has
+ * halved as many words as its table has, i.e., once per sweep of its partial resets or time aging,
+ * and they get forgotten when the sketch gets cleared or resized. As the sketch halves word by word,
+ * the exact counts get halved in the middle of each sweep, which is off by at most half a sweep.
+ * Keys whose exact count has dropped to zero get removed on halving, making room for new ones.
+ *
+ * <p>The exact counts get compared clamped to the maximum the counters can hold, so that saturated
+ * counters don't show up as underestimates.
+ *
+ * <p>The overhead is one hash per increment plus a table lookup for the sampled keys. A
+ * {@link #report()} queries the sketch once per sampled key.
+ */
+@NotThreadSafe
+public final class AccuracyMonitor implements Frequency {
+	private static final long SAMPLING_SEED = 0x3c6ef372fe94f82bL;
+	private static final int EMPTY = -1;
+
+	private final Frequency delegate;
+	private final MyCountMinFrequency countMin;
+	private final long sampleMask;
+	private final int capacity;
+
+	private final long[] keys;
+	/** The exact counts, {@link #EMPTY} for free slots. */
+	private final int[] counts;
+	private int size;
+	private long rejected;
+
+	private long lastHalvedWords;
+	private long lastClears;
+
+	/**
+	 * @param delegate the chain whose estimates get checked, taking the same keys as this
+	 * @param countMin the sketch inside the chain, whose aging gets followed
+	 */
+	public AccuracyMonitor(Frequency delegate, MyCountMinFrequency countMin, MyFrequencyFactory factory) {
+		this.delegate = checkNotNull(delegate);
+		this.countMin = checkNotNull(countMin);
+		final int sampleShift = factory.getAccuracySampleShift();
+		checkArgument(0 <= sampleShift && sampleShift < 64);
+		sampleMask = (1L << sampleShift) - 1;
+		capacity = factory.getAccuracySampleCapacity();
+		checkArgument(capacity > 0);
+		// At most half full.
+		keys = new long[Integer.highestOneBit(4 * capacity - 1)];
+		counts = new int[keys.length];
+		Arrays.fill(counts, EMPTY);
+		lastClears = countMin.clears();
+		lastHalvedWords = midSweep();
+	}
+
+	@Override public void increment(long e, int count) {
+		delegate.increment(e, count);
+		if (isSampled(e)) record(e, count);
+	}
+
+	@Override public int frequencyThenIncrement(long e, int count) {
+		final int result = delegate.frequencyThenIncrement(e, count);
+		if (isSampled(e)) record(e, count);
+		return result;
+	}
+
+	@Override public int frequency(long e) {
+		return delegate.frequency(e);
+	}
+
+	private boolean isSampled(long e) {
+		return (SpreadingFrequency.spread(e, SAMPLING_SEED) & sampleMask) == 0;
+	}
+
+	private void record(long e, int count) {
+		age();
+		final int slot = slot(e);
+		if (counts[slot] == EMPTY) {
+			if (size == capacity) {
+				++rejected;
+				return;
+			}
+			++size;
+			keys[slot] = e;
+			counts[slot] = 0;
+		}
+		counts[slot] = (int) Math.min((long) counts[slot] + count, Integer.MAX_VALUE);
+	}
+
+	/** Returns the slot containing the key or the empty slot where it belongs. */
+	private int slot(long e) {
+		final int mask = keys.length - 1;
+		int i = (int) (SpreadingFrequency.spread(e, SAMPLING_SEED) >>> 32) & mask;
+		while (counts[i] != EMPTY && keys[i] != e) i = (i + 1) & mask;
+		return i;
+	}
+
+	/** Follows the aging of the sketch done since the last call. */
+	private void age() {
+		final long clears = countMin.clears();
+		if (clears != lastClears) {
+			lastClears = clears;
+			lastHalvedWords = midSweep();
+			Arrays.fill(counts, EMPTY);
+			size = 0;
+			return;
+		}
+		final int tableLength = countMin.tableLength();
+		int halvings = 0;
+		while (countMin.halvedWords() - lastHalvedWords >= tableLength) {
+			lastHalvedWords += tableLength;
+			++halvings;
+		}
+		if (halvings > 0) halve(Math.min(halvings, 31));
+	}
+
+	/**
+	 * Returns the value of {@link #lastHalvedWords} making the next halving happen after half a
+	 * sweep, which is when the sketch has halved half of the counters.
+	 */
+	private long midSweep() {
+		return countMin.halvedWords() - countMin.tableLength() / 2;
+	}
+
+	private void halve(int halvings) {
+		final long[] oldKeys = keys.clone();
+		final int[] oldCounts = counts.clone();
+		Arrays.fill(counts, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			final int count = oldCounts[i] >>> halvings;
+			if (oldCounts[i] == EMPTY || count == 0) continue;
+			final int slot = slot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			counts[slot] = count;
+			++size;
+		}
+	}
+
+	/** Compares the sketch estimates of all sampled keys to their exact counts. */
+	public Report report() {
+		age();
+		final int[] errors = new int[size];
+		final int[] exacts = new int[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (counts[i] == EMPTY) continue;
+			final int exact = Math.min(counts[i], countMin.maxCount());
+			exacts[n] = exact;
+			errors[n] = delegate.frequency(keys[i]) - exact;
+			++n;
+		}
+		return new Report(errors, exacts, rejected);
+	}
+
+	/** The error statistics of the sampled keys, where error means the estimate minus the exact count. */
+	@Getter public static final class Report {
+		private final int sampleSize;
+		/** The number of sampled keys not tracked due to the table being full. */
+		private final long rejected;
+		/** The mean error. */
+		private final double bias;
+		private final double meanAbsoluteError;
+		private final double rootMeanSquareError;
+		/** The mean of the absolute error divided by the exact count, over keys with a non-zero count. */
+		private final double meanRelativeError;
+		/** The fraction of keys estimated too high. */
+		private final double overestimatedFraction;
+		/** The fraction of keys estimated too low. */
+		private final double underestimatedFraction;
+		private final int minError;
+		private final int medianError;
+		private final int p90Error;
+		private final int p99Error;
+		private final int maxError;
+
+		Report(int[] errors, int[] exacts, long rejected) {
+			sampleSize = errors.length;
+			this.rejected = rejected;
+			double sum = 0, absSum = 0, squareSum = 0, relativeSum = 0;
+			int over = 0, under = 0, nonZero = 0;
+			for (int i = 0; i < errors.length; i++) {
+				final int error = errors[i];
+				sum += error;
+				absSum += Math.abs(error);
+				squareSum += (double) error * error;
+				if (error > 0) ++over;
+				if (error < 0) ++under;
+				if (exacts[i] > 0) {
+					relativeSum += (double) Math.abs(error) / exacts[i];
+					++nonZero;
+				}
+			}
+			final int n = Math.max(sampleSize, 1);
+			bias = sum / n;
+			meanAbsoluteError = absSum / n;
+			rootMeanSquareError = Math.sqrt(squareSum / n);
+			meanRelativeError = relativeSum / Math.max(nonZero, 1);
+			overestimatedFraction = (double) over / n;
+			underestimatedFraction = (double) under / n;
+			final int[] sorted = errors.clone();
+			Arrays.sort(sorted);
+			minError = percentile(sorted, 0);
+			medianError = percentile(sorted, 0.5);
+			p90Error = percentile(sorted, 0.9);
+			p99Error = percentile(sorted, 0.99);
+			maxError = percentile(sorted, 1);
+		}
+
+		private static int percentile(int[] sorted, double p) {
+			if (sorted.length == 0) return 0;
+			return sorted[(int) Math.min(Math.round(p * (sorted.length - 1)), sorted.length - 1)];
+		}
+
+		@Override public String toString() {
+			return String.format("n=%d rejected=%d bias=%.3f mae=%.3f rmse=%.3f mre=%.3f over=%.3f under=%.3f"
+					+ " errors min/p50/p90/p99/max=%d/%d/%d/%d/%d",
+					sampleSize, rejected, bias, meanAbsoluteError, rootMeanSquareError, meanRelativeError,
+					overestimatedFraction, underestimatedFraction, minError, medianError, p90Error, p99Error, maxError);
+		}
+	}
+}
@@ -1,27 +1,98 @@
 package frequency;
 
-import lombok.RequiredArgsConstructor;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A small direct-mapped buffer of pending increments in front of another {@link Frequency}.
+ * Repeated increments of the same element are summed up and forwarded at once, which saves
+ * hashing and memory accesses in the delegate when a few hot elements dominate the stream.
+ *
+ * <p>A pending increment is flushed only when its slot is needed for another element, when its
+ * count would overflow, when the frequency of the buffered element gets queried, or on
+ * {@link #flush()}.
+ */
+@NotThreadSafe
+public class BatchingFrequency implements Frequency {
+	private static final int DEFAULT_SLOTS = 16;
 
-@RequiredArgsConstructor public class BatchingFrequency implements Frequency {
 	private final Frequency delegate;
-	private long e;
-	private int count;
+	private final long[] elements;
+	/** The pending counts, zero meaning that the slot is free. */
+	private final int[] counts;
+	private final int mask;
+
+	public BatchingFrequency(Frequency delegate) {
+		this(delegate, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param slots the number of buffered elements, must be a power of two.
+	 */
+	public BatchingFrequency(Frequency delegate, @Nonnegative int slots) {
+		checkArgument(Integer.bitCount(slots) == 1);
+		this.delegate = delegate;
+		elements = new long[slots];
+		counts = new int[slots];
+		mask = slots - 1;
+	}
 
 	@Override public void increment(long e, int count) {
-		if (e == this.e) {
-			this.count += count;
-		} else {
-			delegate.increment(this.e, this.count);
-			this.e = e;
-			this.count = count;
+		if (count == 0) return;
+		final int i = slot(e);
+		if (counts[i] == 0) {
+			elements[i] = e;
+		} else if (elements[i] != e || counts[i] > Integer.MAX_VALUE - count) {
+			// Flushing before the sum overflows, too.
+			delegate.increment(elements[i], counts[i]);
+			elements[i] = e;
+			counts[i] = 0;
 		}
+		counts[i] += count;
 	}
 
 	@Override public int frequency(long e) {
-		if (count > 0) {
-			delegate.increment(this.e, this.count);
-			this.count = 0;
-		}
+		final int i = slot(e);
+		if (counts[i] != 0 && elements[i] == e) flushAt(i);
 		return delegate.frequency(e);
 	}
+
+	/**
+	 * Needing the estimate anyway, this flushes the pending increments of the element and lets the
+	 * delegate apply the new ones in the same probe.
+	 */
+	@Override public int frequencyThenIncrement(long e, int count) {
+		final int i = slot(e);
+		if (counts[i] != 0 && elements[i] == e) flushAt(i);
+		return delegate.frequencyThenIncrement(e, count);
+	}
+
+	/** Forwards all pending increments to the delegate. */
+	public void flush() {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) flushAt(i);
+		}
+	}
+
+	/**
+	 * Drops all pending increments without forwarding them, e.g., when they were hashed with a key
+	 * which is no longer valid, see {@link KeyedSpreadingFrequency}.
+	 */
+	void discard() {
+		Arrays.fill(counts, 0);
+	}
+
+	private void flushAt(int i) {
+		delegate.increment(elements[i], counts[i]);
+		counts[i] = 0;
+	}
+
+	private int slot(long e) {
+		// The upper bits are used for indexing by the delegates, the lowest ones for the nibble shift.
+		return (int) (e >>> 16) & mask;
+	}
 }
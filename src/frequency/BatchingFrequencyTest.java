@@ -0,0 +1,79 @@
+package frequency;
+
+import junit.framework.TestCase;
+
+public class BatchingFrequencyTest extends TestCase {
+	private static class CountingFrequency implements Frequency {
+		@Override public int frequency(long e) {
+			return e == lastElement ? sum : 0;
+		}
+
+		@Override public void increment(long e, int count) {
+			assertTrue(count > 0);
+			++invocations;
+			lastElement = e;
+			sum += count;
+		}
+
+		int invocations;
+		long lastElement;
+		int sum;
+	}
+
+	private final CountingFrequency delegate = new CountingFrequency();
+	private final BatchingFrequency frequency = new BatchingFrequency(delegate, 16);
+
+	public void testInterleavedKeysAreAbsorbed() {
+		final long a = 1L << 16;
+		final long b = 2L << 16;
+		for (int i = 0; i < 100; i++) {
+			frequency.increment(a, 1);
+			frequency.increment(b, 2);
+		}
+		assertEquals(0, delegate.invocations);
+		frequency.flush();
+		assertEquals(2, delegate.invocations);
+		assertEquals(300, delegate.sum);
+	}
+
+	public void testConflictFlushes() {
+		final long a = 1L << 16;
+		final long b = a + (16L << 16);
+		frequency.increment(a, 3);
+		frequency.increment(b, 1);
+		assertEquals(1, delegate.invocations);
+		assertEquals(a, delegate.lastElement);
+		assertEquals(3, delegate.sum);
+	}
+
+	public void testOverflowFlushes() {
+		final long a = 1L << 16;
+		frequency.increment(a, Integer.MAX_VALUE - 1);
+		frequency.increment(a, 1);
+		assertEquals(0, delegate.invocations);
+		frequency.increment(a, 2);
+		assertEquals(1, delegate.invocations);
+		assertEquals(Integer.MAX_VALUE, delegate.sum);
+		frequency.flush();
+		assertEquals(2, delegate.invocations);
+	}
+
+	public void testFrequencyFlushesOnlyTheQueriedElement() {
+		final long a = 1L << 16;
+		final long b = 2L << 16;
+		frequency.increment(a, 1);
+		frequency.increment(b, 1);
+		assertEquals(1, frequency.frequency(b));
+		assertEquals(1, delegate.invocations);
+		assertEquals(0, frequency.frequency(b + (1L << 32)));
+		assertEquals(1, delegate.invocations);
+	}
+
+	public void testNoInitialBogusFlush() {
+		frequency.increment(0, 1);
+		frequency.flush();
+		frequency.flush();
+		assertEquals(1, delegate.invocations);
+		assertEquals(0, delegate.lastElement);
+	}
+}
@@ -0,0 +1,49 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Derives the size and the number of probes of a Bloom filter from the target false positive
+ * probability.
+ *
+ * <p>All the filters set two bits per probed word, both taken from a single 64-bit hash, and derive
+ * the hash for the next word by respreading. The optimal number of bits per element is
+ * {@code -log2(fpp)}, which is rarely even, so the fewest words get probed, for which the false
+ * positive probability is at most five percent worse than for the best even number of bits. Near
+ * the optimum, the probability hardly depends on the number of bits, so this often saves a memory
+ * access, e.g., the default of 3% gives two words and four bits.
+ */
+public final class BloomSizing {
+	public static final double DEFAULT_FPP = 0.03;
+	/** The maximum number of words probed, giving 16 bits per element. */
+	public static final int MAX_PROBED_WORDS = 8;
+
+	private static final double LOG_OF_2 = Math.log(2);
+	/** How much worse than the optimum the chosen number of probes may be. */
+	private static final double SLACK = 1.05;
+
+	private BloomSizing() {
+	}
+
+	/** Returns the optimal number of bits per expected insertion. */
+	public static double bitsPerElement(double fpp) {
+		checkArgument(0 < fpp && fpp < 1, "The false positive probability must lie between 0 and 1.");
+		return -Math.log(fpp) / (LOG_OF_2 * LOG_OF_2);
+	}
+
+	/** Returns the number of words to be probed, each with two bits. */
+	public static int probedWords(double fpp) {
+		final double bitsPerElement = bitsPerElement(fpp);
+		double best = 1;
+		for (int words = 1; words <= MAX_PROBED_WORDS; words++) best = Math.min(best, fpp(words, bitsPerElement));
+		for (int words = 1; ; words++) {
+			if (fpp(words, bitsPerElement) <= SLACK * best) return words;
+		}
+	}
+
+	/** Returns the false positive probability of a classical filter with {@code 2 * words} probes. */
+	private static double fpp(int words, double bitsPerElement) {
+		final int probes = 2 * words;
+		return Math.pow(1 - Math.exp(-probes / bitsPerElement), probes);
+	}
+}
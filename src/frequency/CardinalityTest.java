@@ -0,0 +1,78 @@
+package frequency;
+
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class CardinalityTest extends TestCase {
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testHyperLogLog() {
+		for (final int n : new int[] {10, 1000, 100000, 1000000}) {
+			final HyperLogLog hll = new HyperLogLog(12);
+			for (int i = 0; i < n; i++) {
+				final long e = random.nextLong();
+				hll.add(e);
+				hll.add(e);
+			}
+			assertEquals(n, hll.estimate(), 0.05 * n + 1);
+		}
+	}
+
+	public void testBloomEstimatedSize() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setBloomExpectedInsertions(100000);
+		factory.setBloomOccupancyRatio(0.9);
+		final MyBloomFilter filter = new MyBloomFilter(factory);
+		final int n = 50000;
+		for (int i = 0; i < n; i++) filter.put(random.nextLong());
+		assertEquals(n, filter.estimatedSize(), 0.05 * n);
+	}
+
+	public void testAutoSizing() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setAutoSizing(true);
+		factory.setBloomExpectedInsertions(1000);
+		factory.setBloomOccupancyRatio(0.5);
+		factory.setCmExpectedInsertions(1000);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		final Frequency frequency = factory.newFrequency();
+		final long[] keys = new long[100000];
+		for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong();
+		for (int round = 0; round < 3; round++) {
+			for (final long key : keys) frequency.increment(key, 1);
+		}
+		int sum = 0;
+		for (final long key : keys) sum += frequency.frequency(key);
+		// Without growing, the tiny doorkeeper would have been reset too often to keep track.
+		assertTrue(sum > 2 * keys.length);
+	}
+
+	public void testAutoSizingFollowsWorkingSet() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setAutoSizing(true);
+		factory.setBloomExpectedInsertions(1000);
+		factory.setBloomOccupancyRatio(0.5);
+		factory.setCmExpectedInsertions(1000);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		final MyBloomFilter filter = new MyBloomFilter(factory);
+		final MyCountMinFrequency countMin = factory.newCountMin();
+		final SizingFrequency frequency = new SizingFrequency(new FilteredFrequency(countMin, filter), filter, countMin,
+				factory);
+		// The working set of 20000 keys gets replaced completely in every phase.
+		final int workingSet = 20000;
+		for (int phase = 0; phase < 20; phase++) {
+			final long[] keys = new long[workingSet];
+			for (int i = 0; i < workingSet; i++) keys[i] = random.nextLong();
+			for (int round = 0; round < 4; round++) {
+				for (final long key : keys) frequency.increment(key, 1);
+			}
+		}
+		final long estimate = frequency.estimatedDistinct();
+		System.out.println("working set " + workingSet + ", estimated " + estimate + ", count-min words " + countMin.tableLength());
+		// Without aging, the estimate would be the 400000 keys seen in total.
+		assertTrue(String.valueOf(estimate), estimate < 4 * workingSet);
+	}
+}
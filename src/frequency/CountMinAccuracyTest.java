@@ -0,0 +1,178 @@
+package frequency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the over-estimation of {@link MyCountMin4Frequency} against exact counts and guards it
+ * against regressions, e.g., caused by changes to the spreading or respreading.
+ */
+public class CountMinAccuracyTest extends TestCase {
+	private static final int DISTINCT = 1 << 16;
+	private static final int EVENTS = 1 << 19;
+
+	private static final class Case {
+		Case(boolean zipf, boolean sequentialKeys, boolean conservative) {
+			this.zipf = zipf;
+			this.sequentialKeys = sequentialKeys;
+			this.conservative = conservative;
+		}
+
+		void run() {
+			final SplittableRandom random = new SplittableRandom(9599);
+			final long[] keys = new long[DISTINCT];
+			for (int i = 0; i < DISTINCT; i++) keys[i] = sequentialKeys ? i : random.nextLong();
+			final double[] cdf = zipf ? zipfCdf(DISTINCT, 1.0) : null;
+
+			final MyFrequencyFactory factory = new MyFrequencyFactory();
+			factory.setCmExpectedInsertions(DISTINCT);
+			// Four counters per key in total, i.e., one per row.
+			factory.setCmCountersMultiplier(0.25);
+			// Aging would make the exact counts meaningless.
+			factory.setCmOccupancyRatio(0.999);
+			factory.setCmConservative(conservative);
+			final Frequency frequency = new SpreadingFrequency(factory.newCountMin(), 0x23456789);
+
+			final int[] exact = new int[DISTINCT];
+			for (int n = 0; n < EVENTS; n++) {
+				final int rank = cdf == null ? random.nextInt(DISTINCT) : sample(cdf, random.nextDouble());
+				++exact[rank];
+				frequency.increment(keys[rank], 1);
+			}
+
+			long errorSum = 0;
+			for (int i = 0; i < DISTINCT; i++) {
+				final int expected = Math.min(exact[i], 15);
+				final int error = frequency.frequency(keys[i]) - expected;
+				assertTrue(error >= 0);
+				errorSum += error;
+				if (error > 0) ++wrong;
+			}
+			meanError = (double) errorSum / DISTINCT;
+		}
+
+		final boolean zipf;
+		final boolean sequentialKeys;
+		final boolean conservative;
+		double meanError;
+		int wrong;
+	}
+
+	public void testAccuracy() {
+		final List<Case> cases = new ArrayList<>();
+		for (final boolean zipf : new boolean[] {false, true}) {
+			for (final boolean sequentialKeys : new boolean[] {false, true}) {
+				for (final boolean conservative : new boolean[] {false, true}) {
+					cases.add(new Case(zipf, sequentialKeys, conservative));
+				}
+			}
+		}
+		cases.parallelStream().forEach(new Consumer<Case>() {
+			@Override public void accept(Case c) {
+				c.run();
+			}
+		});
+
+		System.out.println("dist\tkeys\tcons\tmean error\twrong (%)");
+		for (final Case c : cases) {
+			System.out.format("%s\t%s\t%5s\t%6.3f\t(%6.3f%%)\n", c.zipf ? "zipf" : "unif", c.sequentialKeys ? "seq" : "rnd",
+					c.conservative, c.meanError, 100.0 * c.wrong / DISTINCT);
+		}
+		for (final Case c : cases) {
+			assertTrue(c.zipf + " " + c.sequentialKeys + " " + c.conservative + " " + c.meanError,
+					c.meanError < maxMeanError(c));
+		}
+	}
+
+	public void testMonitor() {
+		for (final double cmOccupancyRatio : new double[] {0.999, 0.00005}) {
+			final MyFrequencyFactory factory = new MyFrequencyFactory();
+			factory.setRandomSeed(0x23456789);
+			factory.setBloomExpectedInsertions(DISTINCT);
+			factory.setBloomOccupancyRatio(0.9);
+			factory.setCmExpectedInsertions(DISTINCT);
+			factory.setCmCountersMultiplier(0.25);
+			factory.setCmOccupancyRatio(cmOccupancyRatio);
+			// Wide counters, so that saturation doesn't dominate the error.
+			factory.setCmCounterBits(16);
+			factory.setAccuracySampleShift(4);
+			final AccuracyMonitor monitor = factory.newMonitoredFrequency();
+
+			final SplittableRandom random = new SplittableRandom(9599);
+			final long[] keys = new long[DISTINCT];
+			for (int i = 0; i < DISTINCT; i++) keys[i] = random.nextLong();
+			final double[] cdf = zipfCdf(DISTINCT, 1.0);
+			final int[] exact = new int[DISTINCT];
+			for (int n = 0; n < EVENTS; n++) {
+				final int rank = sample(cdf, random.nextDouble());
+				++exact[rank];
+				monitor.increment(keys[rank], 1);
+			}
+			final AccuracyMonitor.Report report = monitor.report();
+			System.out.println(cmOccupancyRatio + "\t" + report);
+			long errorSum = 0;
+			int seen = 0;
+			for (int i = 0; i < DISTINCT; i++) {
+				if (exact[i] == 0) continue;
+				errorSum += monitor.frequency(keys[i]) - exact[i];
+				++seen;
+			}
+			final double bias = (double) errorSum / seen;
+			System.out.format("full population bias against unaged counts: %.3f\n", bias);
+			if (cmOccupancyRatio < 0.5) {
+				// The exact counts must have been aged like the sketch.
+				assertTrue(report.toString(), Math.abs(report.getBias()) < 0.25 * Math.abs(bias));
+				continue;
+			}
+			assertEquals(seen / 16.0, report.getSampleSize(), seen / 16.0 * 0.2);
+			assertEquals(bias, report.getBias(), 0.1 * Math.abs(bias) + 0.1);
+		}
+	}
+
+	public void testMonitorClampsToSaturation() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setBloomExpectedInsertions(1 << 16);
+		factory.setBloomOccupancyRatio(0.9);
+		factory.setCmExpectedInsertions(1 << 16);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.999);
+		factory.setAccuracySampleShift(0);
+		final AccuracyMonitor monitor = factory.newMonitoredFrequency();
+		// Few keys in a large sketch, each counted far beyond what a nibble holds.
+		for (int round = 0; round < 100; round++) {
+			for (long key = 0; key < 100; key++) monitor.increment(key, 1);
+		}
+		final AccuracyMonitor.Report report = monitor.report();
+		assertEquals(100, report.getSampleSize());
+		assertEquals(report.toString(), 0.0, report.getUnderestimatedFraction());
+		// The doorkeeper may add one on top of a saturated counter.
+		assertTrue(report.toString(), report.getMaxError() <= 1);
+	}
+
+	/** The measured values plus about ten percent. */
+	private static double maxMeanError(Case c) {
+		if (c.zipf) return c.conservative ? 0.06 : 0.13;
+		return c.conservative ? 0.23 : 0.92;
+	}
+
+	private static double[] zipfCdf(int n, double exponent) {
+		final double[] result = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += Math.pow(i + 1, -exponent);
+			result[i] = sum;
+		}
+		for (int i = 0; i < n; i++) result[i] /= sum;
+		return result;
+	}
+
+	private static int sample(double[] cdf, double u) {
+		final int i = Arrays.binarySearch(cdf, u);
+		return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+	}
+}
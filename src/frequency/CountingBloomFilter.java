@@ -0,0 +1,178 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A Bloom filter with 4-bit counters instead of bits, which allows removing elements, e.g., when
+ * they leave the cache, instead of leaving them to the aging. It probes the words like
+ * {@link MyBloomFilter}, but picks two counters instead of two bits in every word. It can replace a
+ * {@link MyBloomFilter} as the doorkeeper of a {@link FilteredFrequency}, for four times the memory.
+ *
+ * <p>Aging halves the counters of a word at a time just like {@link MyCountMin4Frequency} does,
+ * whenever the sum of all counters reaches the limit given by the occupancy ratio, or once per
+ * period with aging by time. So an element put often survives aging longer than one put once.
+ *
+ * <p>Saturated counters never get decremented, and neither do zero ones. Removing an element which
+ * was not put, or which was put before an aging, can cause false negatives for other elements,
+ * which is harmless for a doorkeeper, as it only makes an event count once less.
+ */
+@NotThreadSafe
+public final class CountingBloomFilter implements BloomFilter {
+	private static final int MAX_TABLE_SIZE = 1 << 30; // the largest power of two usable as array length
+	private static final int COUNTERS_PER_LONG_SHIFT = 4; // 16 counters
+	private static final int MAX_COUNT = 15;
+
+	private final boolean fullReset;
+	private final double occupancyRatio;
+	@Nullable private final TimeAging timeAging;
+	private final double bitsPerElement;
+	/** The number of words probed, each with two counters, see {@link BloomSizing}. */
+	private final int probedWords;
+
+	private long[] table;
+	/** A value such that x >>> tableShift is a valid index for any long x. */
+	private int tableShift;
+	/** The sum of all counters. */
+	private long occupancy;
+	private long maxOccupancy;
+	private int cursor;
+
+	public CountingBloomFilter(MyFrequencyFactory factory) {
+		fullReset = factory.getBloomFullReset();
+		occupancyRatio = factory.getBloomOccupancyRatio();
+		checkArgument(0 < occupancyRatio && occupancyRatio < 1);
+		final long agingPeriodNanos = factory.getBloomAgingPeriodNanos();
+		timeAging = agingPeriodNanos > 0 ? new TimeAging(factory.getTicker(), agingPeriodNanos) : null;
+		bitsPerElement = BloomSizing.bitsPerElement(factory.getBloomFpp());
+		probedWords = BloomSizing.probedWords(factory.getBloomFpp());
+		ensureCapacity(factory.getBloomExpectedInsertions());
+	}
+
+	/**
+	 * Increases the capacity if necessary, forgetting all elements, see {@link MyBloomFilter#ensureCapacity}.
+	 *
+	 * @param expectedInsertions the number of expected insertions
+	 */
+	public void ensureCapacity(@Nonnegative long expectedInsertions) {
+		checkArgument(expectedInsertions >= 0);
+
+		final long optimalNumberOfCounters = (long) (expectedInsertions * bitsPerElement);
+		// The minimum optimalSize is 2 in order for tableShift to work.
+		final int optimalSize = (int) Math.max(Math.min(optimalNumberOfCounters >>> COUNTERS_PER_LONG_SHIFT, MAX_TABLE_SIZE), 2);
+		if ((table != null) && (table.length >= optimalSize)) {
+			return;
+		}
+
+		table = new long[Integer.highestOneBit(2 * optimalSize - 1)];
+		tableShift = Long.numberOfLeadingZeros(table.length - 1);
+		occupancy = 0;
+		maxOccupancy = timeAging != null
+				? Long.MAX_VALUE : (long) (occupancyRatio * table.length * (1 << COUNTERS_PER_LONG_SHIFT));
+	}
+
+	@Override public boolean mightContain(long e) {
+		for (int i = 0; i < probedWords; i++) {
+			if (i > 0) e = MyBloomFilter.respread(e);
+			final long entry = table[index(e)];
+			if (counterAt(entry, shift(e)) == 0 || counterAt(entry, altShift(e)) == 0) return false;
+		}
+		return true;
+	}
+
+	@Override public boolean put(long e) {
+		if (timeAging != null) {
+			for (int n = timeAging.due(table.length); n > 0; n--) halveNext();
+		}
+		boolean wasAbsent = false;
+		for (int i = 0; i < probedWords; i++) {
+			if (i > 0) e = MyBloomFilter.respread(e);
+			final int index = index(e);
+			wasAbsent |= incrementAt(index, shift(e));
+			wasAbsent |= incrementAt(index, altShift(e));
+		}
+		if (occupancy >= maxOccupancy) reset();
+		return wasAbsent;
+	}
+
+	/**
+	 * Removes one occurrence of the element, if it might be contained.
+	 *
+	 * @param e the element to remove, assumed to be already spreaded well.
+	 * @return true if the element might have been contained
+	 */
+	public boolean remove(long e) {
+		if (!mightContain(e)) return false;
+		for (int i = 0; i < probedWords; i++) {
+			if (i > 0) e = MyBloomFilter.respread(e);
+			final int index = index(e);
+			decrementAt(index, shift(e));
+			decrementAt(index, altShift(e));
+		}
+		return true;
+	}
+
+	/** Returns the sum of all counters. */
+	public long occupancy() {
+		return occupancy;
+	}
+
+	@Override public void clear() {
+		Arrays.fill(table, 0L);
+		occupancy = 0;
+	}
+
+	/** Returns whether the counter was zero. */
+	private boolean incrementAt(int index, int shift) {
+		final int old = counterAt(table[index], shift);
+		if (old < MAX_COUNT) {
+			table[index] += 1L << shift;
+			++occupancy;
+		}
+		return old == 0;
+	}
+
+	private void decrementAt(int index, int shift) {
+		final int old = counterAt(table[index], shift);
+		if (old == 0 || old == MAX_COUNT) return;
+		table[index] -= 1L << shift;
+		--occupancy;
+	}
+
+	private void reset() {
+		if (fullReset) {
+			clear();
+		} else {
+			halveNext();
+		}
+	}
+
+	private void halveNext() {
+		final int i = cursor++ & (table.length - 1);
+		final long old = table[i];
+		final long neu = (old >>> 1) & MyCountMin4Frequency.RESET_MASK;
+		table[i] = neu;
+		occupancy -= MyCountMin4Frequency.nibbleSum(old - neu);
+	}
+
+	private static int counterAt(long entry, int shift) {
+		return (int) (entry >>> shift) & MAX_COUNT;
+	}
+
+	private int index(long e) {
+		return (int) (e >>> tableShift);
+	}
+
+	private static int shift(long e) {
+		return ((int) e & MAX_COUNT) << 2;
+	}
+
+	private static int altShift(long e) {
+		return ((int) (e >>> COUNTERS_PER_LONG_SHIFT) & MAX_COUNT) << 2;
+	}
+}
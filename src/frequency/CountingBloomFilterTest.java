@@ -0,0 +1,87 @@
+package frequency;
+
+import java.util.SplittableRandom;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+public class CountingBloomFilterTest extends TestCase {
+	private static final int CAPACITY = 1 << 16;
+
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testRemove() {
+		final CountingBloomFilter filter = new CountingBloomFilter(newFactory());
+		final long[] keys = new long[CAPACITY];
+		int falsePositives = 0;
+		for (int i = 0; i < CAPACITY; i++) {
+			keys[i] = random.nextLong();
+			// A fresh key is reported as new unless it's a false positive.
+			final boolean seen = filter.mightContain(keys[i]);
+			assertEquals(!seen, filter.put(keys[i]));
+			if (seen) ++falsePositives;
+		}
+		assertTrue(String.valueOf(falsePositives), falsePositives < 0.03 * CAPACITY);
+		for (final long key : keys) assertTrue(filter.mightContain(key));
+		// Remove every other key.
+		for (int i = 0; i < CAPACITY; i += 2) assertTrue(filter.remove(keys[i]));
+		int remaining = 0;
+		for (int i = 0; i < CAPACITY; i++) {
+			if (i % 2 == 1) {
+				assertTrue(filter.mightContain(keys[i]));
+			} else if (filter.mightContain(keys[i])) {
+				++remaining;
+			}
+		}
+		// The removed keys are as good as never put, i.e., they're just false positives.
+		assertTrue(remaining < 0.03 * CAPACITY / 2);
+		for (int i = 1; i < CAPACITY; i += 2) assertTrue(filter.remove(keys[i]));
+		assertEquals(0, filter.occupancy());
+	}
+
+	public void testTimeAging() {
+		final long[] now = new long[1];
+		final MyFrequencyFactory factory = newFactory();
+		factory.setBloomAgingPeriodNanos(1000000);
+		factory.setTicker(new Ticker() {
+			@Override public long read() {
+				return now[0];
+			}
+		});
+		final CountingBloomFilter filter = new CountingBloomFilter(factory);
+		final long frequent = random.nextLong();
+		final long rare = random.nextLong();
+		for (int i = 0; i < 8; i++) filter.put(frequent);
+		filter.put(rare);
+		// Traffic spread over a whole period halves every counter once.
+		for (int i = 0; i < 100000; i++) {
+			now[0] += 10;
+			filter.put(1);
+		}
+		assertTrue(filter.mightContain(frequent));
+		assertFalse(filter.mightContain(rare));
+	}
+
+	public void testDoorkeeper() {
+		final MyFrequencyFactory factory = newFactory();
+		factory.setCmExpectedInsertions(CAPACITY);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		final Frequency frequency = new FilteredFrequency(factory.newCountMin(), new CountingBloomFilter(factory));
+		final long key = random.nextLong();
+		assertEquals(0, frequency.frequency(key));
+		frequency.increment(key, 1);
+		assertEquals(1, frequency.frequency(key));
+		frequency.increment(key, 3);
+		assertEquals(4, frequency.frequency(key));
+	}
+
+	private static MyFrequencyFactory newFactory() {
+		final MyFrequencyFactory result = new MyFrequencyFactory();
+		result.setBloomExpectedInsertions(CAPACITY);
+		// High enough for no aging by occupancy to happen.
+		result.setBloomOccupancyRatio(0.9);
+		return result;
+	}
+}
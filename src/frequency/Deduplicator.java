@@ -0,0 +1,143 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Ticker;
+
+/**
+ * An approximate "seen recently" filter passing only the first occurrence of a key within a window.
+ *
+ * <p>The keys get remembered in two {@link MyBloomFilter}s, the current and the previous generation.
+ * Every key gets put into the current one and looked up in both. A generation ends after a window,
+ * i.e., a configured number of events or a configured duration, when the current filter becomes the
+ * previous one and the old previous one gets cleared and reused. So a key is remembered for at least
+ * one and at most two windows: A repetition within a window is never passed, a repetition after two
+ * windows always is, and in between it depends on the phase. Such filters never forget anything on
+ * their own, so the partial resets don't lose anything inside the window.
+ *
+ * <p>The price are false positives, i.e., new keys rejected as duplicates, with a probability of
+ * about twice the one of a single filter, as long as the number of distinct keys per window doesn't
+ * exceed the filter's expected insertions. With windows by time, the clock gets read on every
+ * event, so that a window ends with the first event after its end, whatever the traffic.
+ *
+ * <p>The stream methods need sequential streams, as this is not thread-safe.
+ */
+@NotThreadSafe
+public final class Deduplicator implements LongPredicate {
+	private final long randomSeed;
+	private final long windowEvents;
+	private final long windowNanos;
+	@Nullable private final Ticker ticker;
+
+	private MyBloomFilter current;
+	private MyBloomFilter previous;
+	/** The events or the time when the current generation ends. */
+	private long windowEnd;
+	private long events;
+
+	public Deduplicator(MyFrequencyFactory factory) {
+		randomSeed = factory.getRandomSeed() | 1;
+		windowEvents = factory.getDedupWindowEvents();
+		windowNanos = factory.getDedupWindowNanos();
+		checkArgument(windowEvents >= 0 && windowNanos >= 0 && (windowEvents > 0) != (windowNanos > 0),
+				"Exactly one of dedupWindowEvents and dedupWindowNanos must be positive.");
+		final long expectedInsertions = windowEvents > 0 ? windowEvents : factory.getBloomExpectedInsertions();
+		current = new MyBloomFilter(expectedInsertions, factory.getBloomFpp());
+		previous = new MyBloomFilter(expectedInsertions, factory.getBloomFpp());
+		ticker = windowEvents > 0 ? null : factory.getTicker();
+		windowEnd = ticker == null ? windowEvents : ticker.read() + windowNanos;
+	}
+
+	/**
+	 * Returns true if the key wasn't seen within the window, i.e., if it should be passed, and records
+	 * the occurrence.
+	 *
+	 * @param e the key, which needn't be spread
+	 */
+	@Override public boolean test(long e) {
+		rotateIfDue();
+		e = SpreadingFrequency.spread(e, randomSeed);
+		final boolean seenBefore = previous.mightContain(e);
+		return current.put(e) && !seenBefore;
+	}
+
+	/** Returns a predicate deduplicating objects by their hashes as given by the hasher, e.g., {@link KeyHasher}. */
+	public <T> Predicate<T> asPredicate(final ToLongFunction<? super T> hasher) {
+		return new Predicate<T>() {
+			@Override public boolean test(T t) {
+				return Deduplicator.this.test(hasher.applyAsLong(t));
+			}
+		};
+	}
+
+	/** Returns the sequential stream without the duplicates within the window. */
+	public LongStream filter(LongStream keys) {
+		return keys.sequential().filter(this);
+	}
+
+	/** Returns the sequential stream without the objects whose hashes occurred within the window. */
+	public <T> Stream<T> filter(Stream<T> stream, ToLongFunction<? super T> hasher) {
+		return stream.sequential().filter(asPredicate(hasher));
+	}
+
+	/**
+	 * Moves the keys to be passed to the beginning of the array, keeping their order.
+	 *
+	 * @return the number of keys passed
+	 */
+	public int retainNew(long[] keys, int length) {
+		int result = 0;
+		for (int i = 0; i < length; i++) {
+			final long e = keys[i];
+			if (test(e)) keys[result++] = e;
+		}
+		return result;
+	}
+
+	/** Tests all the keys, storing the results. */
+	public void test(long[] keys, int length, boolean[] results) {
+		for (int i = 0; i < length; i++) results[i] = test(keys[i]);
+	}
+
+	/** Forgets all keys and starts a new window. */
+	public void clear() {
+		current.clear();
+		previous.clear();
+		events = 0;
+		windowEnd = ticker == null ? windowEvents : ticker.read() + windowNanos;
+	}
+
+	private void rotateIfDue() {
+		++events;
+		if (ticker == null) {
+			if (events > windowEnd) {
+				windowEnd += windowEvents;
+				rotate();
+			}
+		} else {
+			final long now = ticker.read();
+			if (now - windowEnd >= 0) {
+				// After an idle time, both generations are outdated.
+				if (now - windowEnd >= windowNanos) current.clear();
+				windowEnd = now + windowNanos;
+				rotate();
+			}
+		}
+	}
+
+	private void rotate() {
+		final MyBloomFilter oldest = previous;
+		previous = current;
+		current = oldest;
+		current.clear();
+	}
+}
@@ -0,0 +1,135 @@
+package frequency;
+
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+
+import junit.framework.TestCase;
+
+import com.google.common.base.Ticker;
+
+public class DeduplicatorTest extends TestCase {
+	private static final int WINDOW = 1 << 14;
+
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testWindowByEvents() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setDedupWindowEvents(WINDOW);
+		final Deduplicator deduplicator = factory.newDeduplicator();
+		final long[] history = new long[3 * WINDOW];
+		final boolean[] repeats = new boolean[history.length];
+		int falsePositives = 0;
+		for (int i = 0; i < history.length; i++) {
+			final boolean repeat = i >= WINDOW && random.nextInt(4) == 0;
+			final long key = repeat ? history[i - 1 - random.nextInt(WINDOW)] : random.nextLong();
+			history[i] = key;
+			repeats[i] = repeat;
+			final boolean passed = deduplicator.test(key);
+			if (repeat) {
+				// A repetition within the window must never pass.
+				assertFalse(passed);
+			} else if (!passed) {
+				++falsePositives;
+			}
+		}
+		System.out.format("false positives: %.3f%%\n", 100.0 * falsePositives / history.length);
+		assertTrue(falsePositives < 0.07 * history.length);
+		// After two more windows, everything is forgotten.
+		for (int i = 0; i < 2 * WINDOW; i++) deduplicator.test(random.nextLong());
+		int passed = 0;
+		int fresh = 0;
+		for (int i = history.length - WINDOW; i < history.length; i++) {
+			if (repeats[i]) continue;
+			++fresh;
+			if (deduplicator.test(history[i])) ++passed;
+		}
+		assertTrue(passed > 0.9 * fresh);
+	}
+
+	public void testFpp() {
+		final double[] rates = new double[2];
+		final double[] fpps = {0.03, 0.001};
+		for (int k = 0; k < fpps.length; k++) {
+			final MyFrequencyFactory factory = new MyFrequencyFactory();
+			factory.setDedupWindowEvents(WINDOW);
+			factory.setBloomFpp(fpps[k]);
+			final Deduplicator deduplicator = factory.newDeduplicator();
+			int falsePositives = 0;
+			for (int i = 0; i < 4 * WINDOW; i++) {
+				if (!deduplicator.test(random.nextLong())) ++falsePositives;
+			}
+			rates[k] = (double) falsePositives / (4 * WINDOW);
+			// About twice the one of a single filter.
+			assertTrue(rates[k] + " " + fpps[k], rates[k] < 3 * fpps[k]);
+		}
+		assertTrue(rates[1] < rates[0] / 10);
+	}
+
+	public void testWindowByTime() {
+		final long[] now = new long[1];
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setDedupWindowNanos(1000);
+		factory.setBloomExpectedInsertions(WINDOW);
+		factory.setTicker(new Ticker() {
+			@Override public long read() {
+				return now[0];
+			}
+		});
+		final Deduplicator deduplicator = factory.newDeduplicator();
+		final long key = random.nextLong();
+		assertTrue(deduplicator.test(key));
+		int rejected = 0;
+		for (int i = 0; i < 100; i++) {
+			now[0] += 10;
+			if (!deduplicator.test(random.nextLong())) ++rejected;
+		}
+		// Only false positives, which are rare in a nearly empty filter.
+		assertTrue(String.valueOf(rejected), rejected <= 1);
+		// 1000 nanos later, the window has just ended, but the key is still in the previous generation.
+		assertFalse(deduplicator.test(key));
+		// The first event after an idle time sees everything forgotten.
+		now[0] += 5000;
+		assertTrue(deduplicator.test(key));
+		assertFalse(deduplicator.test(key));
+	}
+
+	public void testBatch() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setDedupWindowEvents(WINDOW);
+		final Deduplicator deduplicator = factory.newDeduplicator();
+		final long[] keys = {1, 2, 1, 3, 2, 4};
+		assertEquals(4, deduplicator.retainNew(keys, keys.length));
+		assertEquals(4, keys[3]);
+		assertEquals(0, deduplicator.filter(LongStream.of(1, 2, 3, 4)).count());
+	}
+
+	public void testBenchmark() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setDedupWindowEvents(1 << 20);
+		final Deduplicator deduplicator = factory.newDeduplicator();
+		final long[] keys = new long[1 << 16];
+		for (int i = 0; i < keys.length; i++) keys[i] = random.nextInt(1 << 22);
+		final long distinct = LongStream.of(keys).distinct().count();
+		final boolean[] results = new boolean[keys.length];
+		final int rounds = 200;
+		long nanos = 0;
+		for (int round = 0; round < rounds; round++) {
+			final long start = System.nanoTime();
+			deduplicator.test(keys, keys.length, results);
+			nanos += System.nanoTime() - start;
+			int passed = 0;
+			for (final boolean result : results) {
+				if (result) ++passed;
+			}
+			if (round == 0) {
+				// The first occurrences pass unless they're false positives.
+				assertTrue(passed + " " + distinct, passed <= distinct && passed > 0.99 * distinct);
+			} else {
+				// Every key repeats once per round, much more often than the window ends.
+				assertEquals(0, passed);
+			}
+		}
+		final long events = (long) rounds * keys.length;
+		System.out.format("dedup: %5.1f ns/op, %5.1f M events/s\n", (double) nanos / events, 1e3 * events / nanos);
+	}
+}
@@ -13,6 +13,19 @@ import lombok.RequiredArgsConstructor;
 		delegate.increment(e, count);
 	}
 
+	/**
+	 * As {@link BloomFilter#put} tells if the element was absent, the filter gets probed only once.
+	 */
+	@Override public int frequencyThenIncrement(long e, int count) {
+		if (count == 0) return frequency(e);
+		final boolean wasAbsent = filter.put(e);
+		if (wasAbsent) {
+			if (count > 1) delegate.increment(e, count - 1);
+			return 0;
+		}
+		return delegate.frequencyThenIncrement(e, count) + 1;
+	}
+
 	@Override public int frequency(long e) {
 		// Adding one to account for the events lost in the filter.
 		return filter.mightContain(e) ? delegate.frequency(e) + 1 : 0;
@@ -34,5 +34,18 @@ public interface Frequency {
 	 * @param count The amount to be added.
 	 */
 	void increment(long e, int count);
+
+	/**
+	 * Returns the estimated number of times the element was seen and then increments its popularity.
+	 * This is equivalent to calling {@link #frequency} followed by {@link #increment}, but
+	 * implementations may hash the element and locate its counters just once.
+	 * @param e Already spreaded hash of the input.
+	 * @param count The amount to be added, may be zero.
+	 */
+	default int frequencyThenIncrement(long e, int count) {
+		final int result = frequency(e);
+		if (count > 0) increment(e, count);
+		return result;
+	}
 }
 
@@ -0,0 +1,210 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Takes increments from any number of producers through a bounded lock-free queue and applies
+ * them in batches on a dedicated consumer thread, so that producers never run the sketch inline.
+ *
+ * <p>The target gets written by the consumer thread only, so it needs no locking, but queries must
+ * not race with it. A {@link SnapshotFrequency} is meant for this: the consumer is its single writer
+ * and the readers query its snapshots.
+ *
+ * <p>When the target throws, the consumer stops and {@link #offer} and {@link #awaitApplied} rethrow
+ * the failure wrapped in an {@link IllegalStateException}, so that nobody waits for it forever.
+ */
+@ThreadSafe
+public final class FrequencyIngestion implements AutoCloseable {
+	/** What to do when the queue is full. */
+	public enum OverflowPolicy {
+		/** Drop the event. */
+		DROP,
+		/** Wait until there's space. */
+		BLOCK,
+		/**
+		 * Above half the capacity, accept events with a probability falling linearly from one to
+		 * zero at full capacity, so that the relative frequencies stay unbiased.
+		 */
+		SAMPLE,
+	}
+
+	private static final long IDLE_PARK_NANOS = 50_000;
+
+	private final Frequency target;
+	private final OverflowPolicy policy;
+	private final LongMpscQueue queue;
+	private final long[] batch;
+	private final Thread consumer;
+	private volatile boolean closed;
+	/** The number of offers past their registration, see {@link #consume}. */
+	private final AtomicInteger offering = new AtomicInteger();
+	/** What killed the consumer, if anything. */
+	@Nullable private volatile Throwable failure;
+
+	private final LongAdder dropped = new LongAdder();
+	/** The number of increments applied, written by the consumer only. */
+	private volatile long applied;
+	private volatile long batches;
+	private volatile long applyNanos;
+	private volatile long maxApplyNanos;
+
+	/**
+	 * @param target the sketch chain to apply the increments to, e.g., one made by {@link MyFrequencyFactory}
+	 * @param capacity the queue capacity, a power of two
+	 * @param batchSize the maximum number of increments applied per batch
+	 */
+	public FrequencyIngestion(Frequency target, int capacity, int batchSize, OverflowPolicy policy) {
+		checkArgument(batchSize > 0);
+		this.target = checkNotNull(target);
+		this.policy = checkNotNull(policy);
+		queue = new LongMpscQueue(capacity);
+		batch = new long[batchSize];
+		consumer = new Thread(new Runnable() {
+			@Override public void run() {
+				consume();
+			}
+		}, "frequency-ingestion");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Enqueues an increment by one of the element, never blocking unless the policy says so.
+	 *
+	 * @param e the element as expected by the target
+	 * @return false if the event was dropped, which also happens after {@link #close}
+	 * @throws IllegalStateException if the consumer failed
+	 */
+	public boolean offer(long e) {
+		checkFailure();
+		offering.incrementAndGet();
+		try {
+			if (closed) {
+				dropped.increment();
+				return false;
+			}
+			if (policy == OverflowPolicy.SAMPLE && !sample()) {
+				dropped.increment();
+				return false;
+			}
+			while (!queue.offer(e)) {
+				if (policy != OverflowPolicy.BLOCK || closed) {
+					dropped.increment();
+					return false;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				checkFailure();
+			}
+			return true;
+		} finally {
+			offering.decrementAndGet();
+		}
+	}
+
+	private boolean sample() {
+		final int capacity = queue.capacity();
+		final long free = capacity - queueDepth();
+		if (2 * free >= capacity) return true;
+		return ThreadLocalRandom.current().nextInt(capacity >> 1) < free;
+	}
+
+	/**
+	 * Waits until all increments enqueued before this call have been applied, or until the consumer
+	 * has stopped after {@link #close}.
+	 *
+	 * @throws IllegalStateException if the consumer failed
+	 */
+	public void awaitApplied() throws InterruptedException {
+		final long offered = queue.offered();
+		while (applied < offered) {
+			checkFailure();
+			if (Thread.interrupted()) throw new InterruptedException();
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+
+	private void checkFailure() {
+		final Throwable t = failure;
+		if (t != null) throw new IllegalStateException("The consumer failed", t);
+	}
+
+	/** Returns the number of increments waiting in the queue. */
+	public long queueDepth() {
+		return Math.max(queue.offered() - queue.taken(), 0);
+	}
+
+	/** Returns the number of increments dropped because of overflow. */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/** Returns the number of increments applied. */
+	public long applied() {
+		return applied;
+	}
+
+	/** Returns the mean time needed for applying a batch. */
+	public double meanApplyNanos() {
+		final long n = batches;
+		return n == 0 ? 0 : (double) applyNanos / n;
+	}
+
+	/** Returns the maximum time needed for applying a batch. */
+	public long maxApplyNanos() {
+		return maxApplyNanos;
+	}
+
+	/**
+	 * Stops the consumer after applying everything enqueued so far, including the values of offers
+	 * racing with this and returning true. When interrupted, it still waits for the consumer and
+	 * restores the interrupt status afterwards.
+	 */
+	@Override public void close() {
+		closed = true;
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				consumer.join();
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void consume() {
+		for (;;) {
+			final int n = queue.drainTo(batch);
+			if (n == 0) {
+				// An offer registers before reading closed, so once closed and none is registered,
+				// no more values can come and the queue can be checked for the last time.
+				if (closed && offering.get() == 0 && queue.offered() == queue.taken()) return;
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			final long start = System.nanoTime();
+			try {
+				for (int i = 0; i < n; i++) target.increment(batch[i], 1);
+			} catch (final RuntimeException | Error t) {
+				failure = t;
+				return;
+			}
+			final long elapsed = System.nanoTime() - start;
+			// Single writer, so no atomics needed.
+			applied = applied + n;
+			batches = batches + 1;
+			applyNanos = applyNanos + elapsed;
+			if (elapsed > maxApplyNanos) maxApplyNanos = elapsed;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package frequency;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class FrequencyIngestionTest extends TestCase {
+	private static final int PRODUCERS = 4;
+	private static final int EVENTS_PER_PRODUCER = 100000;
+
+	private static class CountingFrequency implements Frequency {
+		@Override public int frequency(long e) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override public void increment(long e, int count) {
+			sum += e * count;
+			invocations += count;
+		}
+
+		long sum;
+		long invocations;
+	}
+
+	public void testBlockLosesNothing() throws InterruptedException {
+		final CountingFrequency target = new CountingFrequency();
+		try (FrequencyIngestion ingestion = new FrequencyIngestion(target, 1 << 8, 64, FrequencyIngestion.OverflowPolicy.BLOCK)) {
+			produce(ingestion);
+			ingestion.awaitApplied();
+			assertEquals(0, ingestion.dropped());
+			assertEquals(0, ingestion.queueDepth());
+			assertEquals((long) PRODUCERS * EVENTS_PER_PRODUCER, ingestion.applied());
+			assertEquals((long) PRODUCERS * EVENTS_PER_PRODUCER, target.invocations);
+			assertEquals(PRODUCERS * (EVENTS_PER_PRODUCER * (EVENTS_PER_PRODUCER - 1L) / 2), target.sum);
+			assertTrue(ingestion.maxApplyNanos() > 0);
+		}
+	}
+
+	public void testDropAccountsForEverything() throws InterruptedException {
+		final CountingFrequency target = new CountingFrequency();
+		try (FrequencyIngestion ingestion = new FrequencyIngestion(target, 1 << 4, 4, FrequencyIngestion.OverflowPolicy.DROP)) {
+			produce(ingestion);
+			ingestion.awaitApplied();
+			assertEquals((long) PRODUCERS * EVENTS_PER_PRODUCER, ingestion.applied() + ingestion.dropped());
+			assertEquals(ingestion.applied(), target.invocations);
+		}
+	}
+
+	public void testFailureSurfaces() throws InterruptedException {
+		final RuntimeException cause = new RuntimeException("broken");
+		final Frequency target = new CountingFrequency() {
+			@Override public void increment(long e, int count) {
+				throw cause;
+			}
+		};
+		try (FrequencyIngestion ingestion = new FrequencyIngestion(target, 1 << 4, 4, FrequencyIngestion.OverflowPolicy.BLOCK)) {
+			try {
+				// The queue fills up once the consumer is dead, so that a blocking offer must fail.
+				for (int i = 0; i < 1 << 10; i++) ingestion.offer(i);
+				fail();
+			} catch (final IllegalStateException e) {
+				assertSame(cause, e.getCause());
+			}
+			try {
+				ingestion.awaitApplied();
+				fail();
+			} catch (final IllegalStateException e) {
+				assertSame(cause, e.getCause());
+			}
+		}
+	}
+
+	public void testOfferAfterClose() throws InterruptedException {
+		final CountingFrequency target = new CountingFrequency();
+		final FrequencyIngestion ingestion = new FrequencyIngestion(target, 1 << 4, 4, FrequencyIngestion.OverflowPolicy.BLOCK);
+		assertTrue(ingestion.offer(1));
+		ingestion.close();
+		assertFalse(ingestion.offer(2));
+		assertEquals(1, ingestion.dropped());
+		ingestion.awaitApplied();
+		assertEquals(1, target.invocations);
+	}
+
+	/** Every offer returning true must get applied, even when racing with close. */
+	public void testConcurrentClose() throws InterruptedException {
+		for (int round = 0; round < 200; round++) {
+			final CountingFrequency target = new CountingFrequency();
+			final FrequencyIngestion ingestion = new FrequencyIngestion(target, 1 << 8, 64, FrequencyIngestion.OverflowPolicy.BLOCK);
+			final AtomicLong accepted = new AtomicLong();
+			final CountDownLatch started = new CountDownLatch(PRODUCERS);
+			final Thread[] producers = new Thread[PRODUCERS];
+			for (int t = 0; t < PRODUCERS; t++) {
+				producers[t] = new Thread() {
+					@Override public void run() {
+						started.countDown();
+						// Blocking, so that only closing makes an offer fail.
+						long n = 0;
+						while (ingestion.offer(n)) ++n;
+						accepted.addAndGet(n);
+					}
+				};
+				producers[t].start();
+			}
+			started.await();
+			ingestion.close();
+			for (final Thread producer : producers) producer.join();
+			assertEquals("round " + round, accepted.get(), ingestion.applied());
+			assertEquals(accepted.get(), target.invocations);
+			assertEquals(PRODUCERS, ingestion.dropped());
+		}
+	}
+
+	private static void produce(final FrequencyIngestion ingestion) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(PRODUCERS);
+		for (int t = 0; t < PRODUCERS; t++) {
+			new Thread() {
+				@Override public void run() {
+					for (int i = 0; i < EVENTS_PER_PRODUCER; i++) ingestion.offer(i);
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+	}
+}
@@ -0,0 +1,290 @@
+package frequency;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+/**
+ * Guards the hot paths against regressions, which don't show up in any result: an allocation, e.g.,
+ * caused by boxing, and a method growing beyond the inlining limits of HotSpot.
+ *
+ * <p>The allocations get measured by the per-thread counter of HotSpot after warming up, so that
+ * the code is compiled. On a JVM without that counter, the allocation tests fail. The sizes are the
+ * bytecode lengths read from the class files, which is what the inlining heuristics look at.
+ *
+ * <p>All optional stages of {@link MyFrequencyFactory#newFrequency()} are covered. Aging by time,
+ * the sharded and the snapshot sketches, except for publishing, aren't.
+ */
+public class HotPathTest extends TestCase {
+	/** The default {@code -XX:MaxInlineSize}, methods this small get inlined even when not hot. */
+	private static final int MAX_INLINE_SIZE = 35;
+	/** The default {@code -XX:FreqInlineSize}, hot methods get inlined up to this size. */
+	private static final int FREQ_INLINE_SIZE = 325;
+
+	private static final int KEYS = 1 << 12;
+	private static final int ROUNDS = 200;
+	/** A tolerance for the bookkeeping of the counter itself, an allocation per operation would take megabytes. */
+	private static final long MAX_ALLOCATED_BYTES = 1024;
+
+	private final long[] keys = new long[KEYS];
+	private int sink;
+
+	@Override protected void setUp() {
+		final SplittableRandom random = new SplittableRandom(9599);
+		for (int i = 0; i < KEYS; i++) keys[i] = random.nextLong();
+	}
+
+	public void testFrequencyDoesNotAllocate() {
+		final Frequency frequency = newFactory().newFrequency();
+		checkNoAllocation("increment", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) frequency.increment(key, 1);
+			}
+		});
+		checkNoAllocation("frequency", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) sink += frequency.frequency(key);
+			}
+		});
+		checkNoAllocation("frequencyThenIncrement", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) sink += frequency.frequencyThenIncrement(key, 1);
+			}
+		});
+	}
+
+	public void testConservativeFrequencyDoesNotAllocate() {
+		final MyFrequencyFactory factory = newFactory();
+		factory.setCmConservative(true);
+		final Frequency frequency = factory.newFrequency();
+		checkNoAllocation("conservative frequencyThenIncrement", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) sink += frequency.frequencyThenIncrement(key, 1);
+			}
+		});
+	}
+
+	public void testSnapshotPublishingDoesNotAllocate() {
+		final SnapshotFrequency frequency = new SnapshotFrequency(newFactory().newCountMin(), 1 << 20, Long.MAX_VALUE);
+		checkNoAllocation("publish", new Runnable() {
+			@Override public void run() {
+				frequency.increment(sink, 1);
+				frequency.publish();
+				sink += frequency.frequency(sink);
+			}
+		});
+	}
+
+	public void testKeyedSpreadingDoesNotAllocate() {
+		final MyFrequencyFactory factory = newFactory();
+		factory.setKeyedSpreading(true);
+		checkChainDoesNotAllocate("keyed", factory.newFrequency());
+	}
+
+	public void testSizingDoesNotAllocate() {
+		final MyFrequencyFactory factory = newFactory();
+		factory.setAutoSizing(true);
+		// Growing allocates new tables, but that happens during the warm-up only.
+		checkChainDoesNotAllocate("sizing", factory.newFrequency());
+	}
+
+	public void testRecordingDoesNotAllocate() throws IOException {
+		final Path directory = Files.createTempDirectory("trace");
+		// Large enough for all sampled events, as preparing the next file allocates.
+		final TraceRecorder recorder = new TraceRecorder(directory, 1 << 22, 3, false);
+		try {
+			final MyFrequencyFactory factory = newFactory();
+			factory.setTraceRecorder(recorder);
+			checkChainDoesNotAllocate("recording", factory.newFrequency());
+		} finally {
+			recorder.close();
+			for (final Path file : TraceReplay.files(directory)) Files.delete(file);
+			Files.delete(directory);
+		}
+	}
+
+	public void testCountingBloomFilterDoesNotAllocate() {
+		final CountingBloomFilter filter = new CountingBloomFilter(newFactory());
+		checkNoAllocation("counting put", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) if (filter.put(key)) ++sink;
+			}
+		});
+		checkNoAllocation("counting mightContain and remove", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) if (filter.mightContain(key) && filter.remove(key)) ++sink;
+			}
+		});
+	}
+
+	public void testBloomFilterDoesNotAllocate() {
+		final MyBloomFilter filter = new MyBloomFilter(newFactory());
+		checkNoAllocation("put", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) if (filter.put(key)) ++sink;
+			}
+		});
+		checkNoAllocation("mightContain", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) if (filter.mightContain(key)) ++sink;
+			}
+		});
+	}
+
+	public void testInliningLimits() throws IOException {
+		checkSizes(SpreadingFrequency.class, MAX_INLINE_SIZE, "spread");
+		checkSizes(SpreadingFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement");
+		checkSizes(FilteredFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement");
+		checkSizes(BatchingFrequency.class, MAX_INLINE_SIZE, "slot");
+		checkSizes(BatchingFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement", "flushAt");
+		checkSizes(MyBloomFilter.class, MAX_INLINE_SIZE, "respread", "twoBits", "index", "altShiftDistance");
+		checkSizes(MyBloomFilter.class, FREQ_INLINE_SIZE, "put", "mightContain", "setTwo", "getTwo");
+		checkSizes(MyCountMinFrequency.class, MAX_INLINE_SIZE,
+				"respread1", "respread2", "respread3", "index", "shift", "extract", "extractAt");
+		checkSizes(MyCountMinFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement",
+				"regularIncrement", "incrementAt", "maximizeAt");
+		checkSizes(KeyedSpreadingFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement",
+				"spread", "checkFlooding");
+		checkSizes(SipHash13.class, FREQ_INLINE_SIZE, "hash");
+		checkSizes(RecordingFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement");
+		checkSizes(TraceRecorder.class, FREQ_INLINE_SIZE, "record", "isSampled");
+		checkSizes(SizingFrequency.class, FREQ_INLINE_SIZE, "increment", "frequency", "frequencyThenIncrement", "track");
+		checkSizes(CountingBloomFilter.class, MAX_INLINE_SIZE, "counterAt", "index", "shift", "altShift");
+		checkSizes(CountingBloomFilter.class, FREQ_INLINE_SIZE, "put", "mightContain", "remove", "incrementAt",
+				"decrementAt");
+		// The Caffeine filters live in the default package.
+		checkSizes("/CaffeinBloomFilter3.class", MAX_INLINE_SIZE, "respread", "index", "altShiftDistance", "put");
+		checkSizes("/CaffeinBloomFilter3.class", FREQ_INLINE_SIZE, "spread", "mightContain", "putInto", "setTwo", "getTwo");
+	}
+
+	private void checkChainDoesNotAllocate(String name, final Frequency frequency) {
+		checkNoAllocation(name + " increment", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) frequency.increment(key, 1);
+			}
+		});
+		checkNoAllocation(name + " frequency", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) sink += frequency.frequency(key);
+			}
+		});
+		checkNoAllocation(name + " frequencyThenIncrement", new Runnable() {
+			@Override public void run() {
+				for (final long key : keys) sink += frequency.frequencyThenIncrement(key, 1);
+			}
+		});
+	}
+
+	private void checkNoAllocation(String name, Runnable hotPath) {
+		final java.lang.management.ThreadMXBean platformBean = ManagementFactory.getThreadMXBean();
+		// Failing rather than passing silently, as the test would guard nothing.
+		assertTrue("The JVM can't count allocations, so " + name + " can't be checked.",
+				platformBean instanceof com.sun.management.ThreadMXBean
+						&& ((com.sun.management.ThreadMXBean) platformBean).isThreadAllocatedMemorySupported());
+		final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) platformBean;
+		bean.setThreadAllocatedMemoryEnabled(true);
+		final long thread = Thread.currentThread().getId();
+		for (int i = 0; i < ROUNDS; i++) hotPath.run();
+
+		final long start = bean.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ROUNDS; i++) hotPath.run();
+		final long allocated = bean.getThreadAllocatedBytes(thread) - start;
+		assertTrue(name + " allocated " + allocated + " bytes in " + (long) ROUNDS * KEYS + " calls",
+				allocated < MAX_ALLOCATED_BYTES);
+	}
+
+	private static MyFrequencyFactory newFactory() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setRandomSeed(0x23456789);
+		factory.setBloomExpectedInsertions(KEYS);
+		factory.setBloomOccupancyRatio(0.5);
+		factory.setCmExpectedInsertions(KEYS);
+		factory.setCmCountersMultiplier(1);
+		// Resetting often makes sure that the aging is covered, too.
+		factory.setCmOccupancyRatio(0.1);
+		return factory;
+	}
+
+	private static void checkSizes(Class<?> clazz, int limit, String... methods) throws IOException {
+		checkSizes("/" + clazz.getName().replace('.', '/') + ".class", limit, methods);
+	}
+
+	/** Checks the bytecode sizes of all methods with the given names, including the overloads. */
+	private static void checkSizes(String resource, int limit, String... methods) throws IOException {
+		final Map<String, Integer> sizes = codeSizes(resource);
+		for (final String method : methods) {
+			boolean found = false;
+			for (final Map.Entry<String, Integer> entry : sizes.entrySet()) {
+				if (!entry.getKey().startsWith(method + "(")) continue;
+				found = true;
+				assertTrue(resource + " " + entry.getKey() + " has " + entry.getValue() + " bytes, more than " + limit,
+						entry.getValue() <= limit);
+			}
+			assertTrue(resource + " " + method, found);
+		}
+	}
+
+	/** Returns the code length by the name and descriptor of every method with code. */
+	private static Map<String, Integer> codeSizes(String resource) throws IOException {
+		try (InputStream stream = HotPathTest.class.getResourceAsStream(resource)) {
+			assertNotNull(resource, stream);
+			final DataInputStream in = new DataInputStream(stream);
+			in.readInt(); // magic
+			in.readInt(); // version
+			final String[] utf8 = new String[in.readUnsignedShort()];
+			for (int i = 1; i < utf8.length; i++) {
+				final int tag = in.readUnsignedByte();
+				switch (tag) {
+					case 1: utf8[i] = in.readUTF(); break;
+					case 5: case 6: in.readLong(); ++i; break; // long and double take two entries
+					case 7: case 8: case 16: case 19: case 20: in.readUnsignedShort(); break;
+					case 15: in.readUnsignedByte(); in.readUnsignedShort(); break;
+					case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: in.readInt(); break;
+					default: throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+			in.readUnsignedShort(); // access flags
+			in.readUnsignedShort(); // this class
+			in.readUnsignedShort(); // super class
+			in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+
+			for (int n = in.readUnsignedShort(); n > 0; n--) {
+				in.skipBytes(6);
+				skipAttributes(in);
+			}
+			final Map<String, Integer> result = new LinkedHashMap<>();
+			for (int n = in.readUnsignedShort(); n > 0; n--) {
+				in.readUnsignedShort(); // access flags
+				final String name = utf8[in.readUnsignedShort()] + utf8[in.readUnsignedShort()];
+				for (int m = in.readUnsignedShort(); m > 0; m--) {
+					final String attribute = utf8[in.readUnsignedShort()];
+					final int length = in.readInt();
+					if (attribute.equals("Code")) {
+						in.readInt(); // max stack and max locals
+						final int codeLength = in.readInt();
+						result.put(name, codeLength);
+						in.skipBytes(length - 8);
+					} else {
+						in.skipBytes(length);
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException {
+		for (int n = in.readUnsignedShort(); n > 0; n--) {
+			in.readUnsignedShort();
+			in.skipBytes(in.readInt());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A HyperLogLog sketch for estimating the number of distinct elements, see
+ * <a href="http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf">Flajolet et al.</a>.
+ * With precision p, it needs 2**p bytes and its relative standard error is about 1.04 / sqrt(2**p).
+ */
+@NotThreadSafe
+public final class HyperLogLog {
+	private final byte[] registers;
+	private final int precision;
+	private final double alphaMM;
+
+	/**
+	 * @param precision the number of bits used for selecting a register, from 4 to 18.
+	 */
+	public HyperLogLog(int precision) {
+		checkArgument(4 <= precision && precision <= 18);
+		this.precision = precision;
+		registers = new byte[1 << precision];
+		final int m = registers.length;
+		alphaMM = 0.7213 / (1 + 1.079 / m) * m * m;
+	}
+
+	/**
+	 * @param e Already spreaded hash of the input.
+	 */
+	public void add(long e) {
+		final int index = (int) (e >>> -precision);
+		// The sentinel bit limits the rank to 64 - precision + 1.
+		final byte rank = (byte) (Long.numberOfLeadingZeros((e << precision) | (1L << (precision - 1))) + 1);
+		if (registers[index] < rank) registers[index] = rank;
+	}
+
+	/** Returns the estimated number of distinct elements added. */
+	public long estimate() {
+		final int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (final byte r : registers) {
+			sum += Double.longBitsToDouble((1023L - r) << 52); // 2**-r
+			if (r == 0) ++zeros;
+		}
+		final double raw = alphaMM / sum;
+		if (raw <= 2.5 * m && zeros > 0) return Math.round(m * Math.log((double) m / zeros)); // linear counting
+		return Math.round(raw);
+	}
+
+	public void clear() {
+		Arrays.fill(registers, (byte) 0);
+	}
+}
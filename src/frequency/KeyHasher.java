@@ -0,0 +1,138 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A fast 64-bit hash for keys given as bytes or chars, producing the input for
+ * {@link Frequency} and {@link BloomFilter} without copying or allocating anything.
+ * The result still needs spreading, e.g., via {@link SpreadingFrequency}, which adds the
+ * per-instance seed.
+ *
+ * <p>The algorithm is in the spirit of wyhash, but it uses two independent lanes of 64-bit
+ * multiply-xorshift instead of the 128-bit multiplication, as {@code Math.multiplyHigh} is not
+ * available in Java 8. Sixteen bytes get consumed per iteration, the lanes and the length get
+ * combined by a final avalanche.
+ *
+ * <p>All methods read the data as little-endian and produce equal hashes for equal byte contents,
+ * regardless of whether they come from an array, a heap buffer or a direct buffer. Chars get
+ * hashed as UTF-16 code units, so a {@code CharSequence} doesn't hash like its encoded bytes.
+ */
+public final class KeyHasher {
+	private static final long P0 = 0xa0761d6478bd642fL;
+	private static final long P1 = 0xe7037ed1a0b428dbL;
+	private static final long P2 = 0x8ebc6af09c88c6e3L;
+	private static final long P3 = 0x589965cc75374cc3L;
+
+	private KeyHasher() {
+	}
+
+	public static long hash(@Nonnull byte[] bytes) {
+		return hash(bytes, 0, bytes.length);
+	}
+
+	public static long hash(@Nonnull byte[] bytes, @Nonnegative int offset, @Nonnegative int length) {
+		checkPositionIndexes(offset, offset + length, bytes.length);
+		long a = P0;
+		long b = P1;
+		final int end = offset + length;
+		int i = offset;
+		for (; i + 16 <= end; i += 16) {
+			a = mix(a, getLong(bytes, i));
+			b = mix(b, getLong(bytes, i + 8));
+		}
+		if (i + 8 <= end) {
+			a = mix(a, getLong(bytes, i));
+			i += 8;
+		}
+		long tail = 0;
+		for (int shift = 0; i < end; ++i, shift += 8) tail |= (bytes[i] & 0xFFL) << shift;
+		b = mix(b, tail);
+		return finish(a, b, length);
+	}
+
+	/**
+	 * Hashes the remaining bytes of the buffer, i.e., those between its position and limit.
+	 * Neither the position nor the byte order of the buffer get changed.
+	 */
+	public static long hash(@Nonnull ByteBuffer buffer) {
+		final boolean swap = buffer.order() == ByteOrder.BIG_ENDIAN;
+		final int length = buffer.remaining();
+		final int end = buffer.limit();
+		long a = P0;
+		long b = P1;
+		int i = buffer.position();
+		for (; i + 16 <= end; i += 16) {
+			final long x = buffer.getLong(i);
+			final long y = buffer.getLong(i + 8);
+			a = mix(a, swap ? Long.reverseBytes(x) : x);
+			b = mix(b, swap ? Long.reverseBytes(y) : y);
+		}
+		if (i + 8 <= end) {
+			final long x = buffer.getLong(i);
+			a = mix(a, swap ? Long.reverseBytes(x) : x);
+			i += 8;
+		}
+		long tail = 0;
+		for (int shift = 0; i < end; ++i, shift += 8) tail |= (buffer.get(i) & 0xFFL) << shift;
+		b = mix(b, tail);
+		return finish(a, b, length);
+	}
+
+	public static long hash(@Nonnull CharSequence chars) {
+		final int end = chars.length();
+		long a = P0;
+		long b = P1;
+		int i = 0;
+		for (; i + 8 <= end; i += 8) {
+			a = mix(a, getLong(chars, i));
+			b = mix(b, getLong(chars, i + 4));
+		}
+		if (i + 4 <= end) {
+			a = mix(a, getLong(chars, i));
+			i += 4;
+		}
+		long tail = 0;
+		for (int shift = 0; i < end; ++i, shift += 16) tail |= (long) chars.charAt(i) << shift;
+		b = mix(b, tail);
+		return finish(a, b, 2 * end);
+	}
+
+	private static long mix(long h, long x) {
+		h = (h ^ x) * P2;
+		return h ^ (h >>> 29);
+	}
+
+	private static long finish(long a, long b, int length) {
+		long h = (a ^ Long.rotateLeft(b, 32)) + length * P3;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long getLong(byte[] bytes, int i) {
+		return (bytes[i] & 0xFFL)
+				| (bytes[i + 1] & 0xFFL) << 8
+				| (bytes[i + 2] & 0xFFL) << 16
+				| (bytes[i + 3] & 0xFFL) << 24
+				| (bytes[i + 4] & 0xFFL) << 32
+				| (bytes[i + 5] & 0xFFL) << 40
+				| (bytes[i + 6] & 0xFFL) << 48
+				| (bytes[i + 7] & 0xFFL) << 56;
+	}
+
+	private static long getLong(CharSequence chars, int i) {
+		return chars.charAt(i)
+				| (long) chars.charAt(i + 1) << 16
+				| (long) chars.charAt(i + 2) << 32
+				| (long) chars.charAt(i + 3) << 48;
+	}
+}
@@ -0,0 +1,74 @@
+package frequency;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class KeyHasherTest extends TestCase {
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testSourcesAgree() {
+		for (int length = 0; length < 100; length++) {
+			final byte[] bytes = new byte[length + 3];
+			for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) random.nextInt();
+			final long expected = KeyHasher.hash(bytes, 3, length);
+
+			final ByteBuffer heap = ByteBuffer.wrap(bytes, 3, length);
+			assertEquals(expected, KeyHasher.hash(heap));
+			assertEquals(expected, KeyHasher.hash(heap.slice().order(ByteOrder.LITTLE_ENDIAN)));
+			assertEquals(3, heap.position());
+
+			final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+			direct.put(bytes).position(3);
+			assertEquals(expected, KeyHasher.hash(direct));
+		}
+	}
+
+	public void testNoCollisions() {
+		final Set<Long> hashes = new HashSet<>();
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(hashes.add(KeyHasher.hash("key" + i)));
+		}
+		assertFalse(KeyHasher.hash("") == KeyHasher.hash("\0"));
+		assertFalse(KeyHasher.hash(new byte[0]) == KeyHasher.hash(new byte[1]));
+	}
+
+	public void testBenchmark() {
+		final int count = 1 << 16;
+		final String[] strings = new String[count];
+		final byte[][] bytes = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			strings[i] = "tenant-" + random.nextInt(1000) + "/segment-" + random.nextLong();
+			bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+		}
+		System.out.println("key\tns/op");
+		for (int round = 0; round < 10; round++) {
+			// Fresh copies have no cached hash, just like keys coming from the network, and get
+			// made before timing, so that only the hashing is measured.
+			final String[] copies = new String[count];
+			for (int i = 0; i < count; i++) copies[i] = new String(strings[i]);
+			long sum = 0;
+			long start = System.nanoTime();
+			for (final String s : copies) sum += s.hashCode();
+			final long hashCodeNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (final String s : copies) sum += KeyHasher.hash(s);
+			final long charsNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (final byte[] b : bytes) sum += KeyHasher.hash(b);
+			final long bytesNanos = System.nanoTime() - start;
+
+			if (round < 9) continue;
+			System.out.format("hashCode\t%5.1f\t(%d)\n", (double) hashCodeNanos / count, sum & 1);
+			System.out.format("chars\t%5.1f\n", (double) charsNanos / count);
+			System.out.format("bytes\t%5.1f\n", (double) bytesNanos / count);
+		}
+	}
+}
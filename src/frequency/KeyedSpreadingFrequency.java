@@ -0,0 +1,138 @@
+package frequency;
+
+import java.security.SecureRandom;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A replacement of {@link SpreadingFrequency} resisting hash flooding. It spreads the keys by
+ * {@link SipHash13} with a secret random key, so that an attacker can't construct keys hitting the
+ * same count-min word or the same Bloom filter word, not even when they learn the hashes.
+ *
+ * <p>As a second line of defense, it watches the number of words which got abnormally saturated,
+ * i.e., count-min words with three quarters of their counters at the maximum and Bloom filter words
+ * with all bits set. Honest heavy hitters saturate words now and then, too, and again after every
+ * halving, so the words get counted per period, which ends with a sweep of the count-min halving,
+ * with a clearing or after {@value #PERIOD_FACTOR} times as many increments as the sketch is sized
+ * for, whatever comes first. The last bound is needed as saturated counters don't add to the
+ * occupancy, so heavy hitters delay the aging. A flood raises the number abruptly, while honest
+ * traffic, even one overloading the sketch, keeps it at a steady rate. So the limit per period is
+ * the configured threshold times one plus the moving average of the previous periods. The average
+ * is capped, so that a patient attacker raising it period by period can't get the limit beyond
+ * {@value #MAX_LIMIT_FACTOR} times the threshold. Honest traffic with up to 64 times the keys the
+ * sketch is sized for keeps the average below one.
+ *
+ * <p>When the number reaches the limit within a period, a new key gets drawn and the filter, the
+ * sketch and the pending increments of the batching get cleared, as the hashes of the old elements
+ * can't be recomputed. So reseeding loses the history like a full reset.
+ */
+@NotThreadSafe
+public final class KeyedSpreadingFrequency implements Frequency {
+	private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+	private static final int PERIOD_FACTOR = 2;
+	/** The weight of the last period in the moving average is the reciprocal of this. */
+	private static final int AVERAGE_PERIODS = 8;
+	/** The maximum limit relative to the threshold. */
+	private static final int MAX_LIMIT_FACTOR = 4;
+
+	private final Frequency delegate;
+	@Nullable private final MyBloomFilter filter;
+	private final MyCountMinFrequency countMin;
+	@Nullable private final BatchingFrequency batching;
+	private final int floodingThreshold;
+	private final long periodLength;
+
+	private long k0;
+	private long k1;
+	/** The number of saturated words at the start of the period. */
+	private long baseline;
+	/** The number of words saturated within a period which makes it reseed. */
+	private long limit;
+	/** The moving average of the number of words saturated per period. */
+	private double averageSaturated;
+	private long periodHalvedWords;
+	private long periodClears;
+	private long periodIncrements;
+	private int reseeds;
+
+	/**
+	 * @param delegate the chain containing the filter and the count-min sketch
+	 * @param filter the filter inside the chain, or {@code null}
+	 * @param countMin the sketch inside the chain
+	 * @param batching the batching inside the chain, or {@code null}
+	 */
+	public KeyedSpreadingFrequency(Frequency delegate, @Nullable MyBloomFilter filter, MyCountMinFrequency countMin,
+			@Nullable BatchingFrequency batching, MyFrequencyFactory factory) {
+		this.delegate = delegate;
+		this.filter = filter;
+		this.countMin = countMin;
+		this.batching = batching;
+		floodingThreshold = factory.getFloodingThreshold();
+		periodLength = PERIOD_FACTOR * factory.getCmExpectedInsertions();
+		newKey();
+		startPeriod();
+	}
+
+	@Override public void increment(long e, int count) {
+		delegate.increment(spread(e), count);
+		checkFlooding();
+	}
+
+	@Override public int frequency(long e) {
+		return delegate.frequency(spread(e));
+	}
+
+	@Override public int frequencyThenIncrement(long e, int count) {
+		final int result = delegate.frequencyThenIncrement(spread(e), count);
+		checkFlooding();
+		return result;
+	}
+
+	/** Returns the number of times the key was replaced due to suspected flooding. */
+	public int reseeds() {
+		return reseeds;
+	}
+
+	long spread(long e) {
+		return SipHash13.hash(k0, k1, e);
+	}
+
+	private void checkFlooding() {
+		final long saturated = saturatedWords() - baseline;
+		if (saturated >= limit) {
+			reseed();
+		} else if (++periodIncrements >= periodLength || countMin.clears() != periodClears
+				|| countMin.halvedWords() - periodHalvedWords >= countMin.tableLength()) {
+			averageSaturated = Math.min(averageSaturated + (saturated - averageSaturated) / AVERAGE_PERIODS,
+					MAX_LIMIT_FACTOR - 1);
+			startPeriod();
+		}
+	}
+
+	void reseed() {
+		newKey();
+		if (filter != null) filter.clear();
+		if (batching != null) batching.discard();
+		countMin.clear();
+		startPeriod();
+		++reseeds;
+	}
+
+	private void startPeriod() {
+		baseline = saturatedWords();
+		periodHalvedWords = countMin.halvedWords();
+		periodClears = countMin.clears();
+		periodIncrements = 0;
+		limit = (long) Math.ceil(floodingThreshold * (1 + averageSaturated));
+	}
+
+	private long saturatedWords() {
+		return countMin.saturatedWords() + (filter == null ? 0 : filter.saturatedWords());
+	}
+
+	private void newKey() {
+		k0 = SECURE_RANDOM.nextLong();
+		k1 = SECURE_RANDOM.nextLong();
+	}
+}
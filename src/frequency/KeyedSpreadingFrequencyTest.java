@@ -0,0 +1,135 @@
+package frequency;
+
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class KeyedSpreadingFrequencyTest extends TestCase {
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	/** The expected values come from a reference implementation checked against the SipHash-2-4 test vector. */
+	public void testSipHash() {
+		assertEquals(3931806377309739662L, SipHash13.hash(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, 0x0706050403020100L));
+		assertEquals(-4800647303603446203L, SipHash13.hash(0, 0, 0));
+		assertEquals(8368014688710731857L, SipHash13.hash(1, 2, 3));
+		assertEquals(3675806476112754227L, SipHash13.hash(0x0123456789abcdefL, 0xfedcba9876543210L, -5));
+	}
+
+	public void testReseedOnFlooding() {
+		final MyFrequencyFactory factory = newFactory();
+		final KeyedSpreadingFrequency frequency = (KeyedSpreadingFrequency) factory.newFrequency();
+		final long victim = random.nextLong();
+		for (int i = 0; i < 5; i++) frequency.increment(victim, 1);
+		assertEquals(5, frequency.frequency(victim));
+
+		// An attacker knowing the key floods the count-min words of the victim, here simulated by
+		// searching for keys hitting one of them, i.e., sharing the topmost bits in some row.
+		final long[] targets = rowIndexes(frequency.spread(victim));
+		for (long key = 0; frequency.reseeds() == 0 && key < 1L << 28; key++) {
+			final long[] indexes = rowIndexes(frequency.spread(key));
+			for (int row = 0; row < 4; row++) {
+				if (indexes[row] == targets[row]) {
+					for (int i = 0; i < 20; i++) frequency.increment(key, 1);
+					break;
+				}
+			}
+		}
+		assertEquals(1, frequency.reseeds());
+		// The sketch got rebuilt with a new key and the flood is gone.
+		assertEquals(0, frequency.frequency(victim));
+	}
+
+	public void testReseedDiscardsPendingIncrements() {
+		final MyFrequencyFactory factory = newFactory();
+		final MyBloomFilter filter = new MyBloomFilter(factory);
+		final MyCountMinFrequency countMin = factory.newCountMin();
+		final BatchingFrequency batching = new BatchingFrequency(countMin);
+		final KeyedSpreadingFrequency frequency = new KeyedSpreadingFrequency(
+				new FilteredFrequency(batching, filter), filter, countMin, batching, factory);
+		final long key = random.nextLong();
+		final long oldHash = frequency.spread(key);
+		// The first increment goes to the filter, the others stay pending.
+		for (int i = 0; i < 5; i++) frequency.increment(key, 1);
+
+		frequency.reseed();
+		batching.flush();
+		// Flushing them would count the old hash in the new sketch.
+		assertEquals(0, countMin.frequency(oldHash));
+		assertEquals(0, frequency.frequency(key));
+	}
+
+	public void testNoReseedOnHonestTraffic() {
+		final KeyedSpreadingFrequency frequency = (KeyedSpreadingFrequency) newFactory().newFrequency();
+		// Zipfian-like traffic with many heavy hitters.
+		for (int i = 0; i < 1 << 20; i++) frequency.increment(random.nextLong() >> random.nextInt(64), 1);
+		assertEquals(0, frequency.reseeds());
+	}
+
+	public void testNoReseedOnLongHonestTraffic() {
+		// Far longer than a period and with up to 16 times the keys the sketch is sized for, so that
+		// honest saturation keeps recurring at a steady rate.
+		for (final int log2Keys : new int[] {18, 20}) {
+			final KeyedSpreadingFrequency frequency = (KeyedSpreadingFrequency) newFactory().newFrequency();
+			for (int i = 0; i < 1 << 27; i++) {
+				// Zipf-like: a key of rank r gets drawn with a probability of about 1 / r.
+				frequency.increment(random.nextInt(1 << log2Keys) >>> random.nextInt(log2Keys + 1), 1);
+			}
+			assertEquals(0, frequency.reseeds());
+		}
+	}
+
+	public void testBenchmark() {
+		final MyFrequencyFactory factory = newFactory();
+		final long[] keys = new long[1 << 16];
+		for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong();
+		System.out.println("spreading\thash ns/op\tchain ns/op");
+		for (final boolean keyed : new boolean[] {false, true, false, true}) {
+			factory.setKeyedSpreading(keyed);
+			final Frequency frequency = factory.newFrequency();
+			final KeyedSpreadingFrequency keyedFrequency = keyed ? (KeyedSpreadingFrequency) frequency : null;
+			long sum = 0;
+			long hashNanos = 0;
+			long chainNanos = 0;
+			for (int round = 0; round < 20; round++) {
+				long start = System.nanoTime();
+				for (final long key : keys) {
+					sum += keyed ? keyedFrequency.spread(key) : SpreadingFrequency.spread(key, 0x23456789);
+				}
+				hashNanos = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (final long key : keys) {
+					frequency.increment(key, 1);
+					sum += frequency.frequency(key);
+				}
+				chainNanos = System.nanoTime() - start;
+			}
+			assertTrue(sum != 0);
+			System.out.format("%s\t%5.1f\t%5.1f\n", keyed ? "siphash" : "multiply",
+					(double) hashNanos / keys.length, (double) chainNanos / keys.length);
+		}
+	}
+
+	/** Returns the topmost 16 bits used by the rows of a count-min sketch with 2**16 words. */
+	private static long[] rowIndexes(long e) {
+		final long[] result = new long[4];
+		result[0] = e >>> 48;
+		e = MyCountMinFrequency.respread1(e);
+		result[1] = e >>> 48;
+		e = MyCountMinFrequency.respread2(e);
+		result[2] = e >>> 48;
+		e = MyCountMinFrequency.respread3(e);
+		result[3] = e >>> 48;
+		return result;
+	}
+
+	private static MyFrequencyFactory newFactory() {
+		final MyFrequencyFactory result = new MyFrequencyFactory();
+		result.setKeyedSpreading(true);
+		result.setBloomExpectedInsertions(1 << 16);
+		result.setBloomOccupancyRatio(0.5);
+		result.setCmExpectedInsertions(1 << 16);
+		result.setCmCountersMultiplier(1);
+		result.setCmOccupancyRatio(0.5);
+		return result;
+	}
+}
@@ -0,0 +1,83 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded lock-free queue of primitive longs for multiple producers and a single consumer,
+ * following Dmitry Vyukov's bounded queue. Every slot carries a sequence number telling whether
+ * it's free for the producer holding a given ticket or filled for the consumer.
+ */
+@ThreadSafe
+final class LongMpscQueue {
+	private final long[] values;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	/** The next ticket for producers. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The next ticket for the consumer, written by the consumer only. */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity must be a power of two
+	 */
+	LongMpscQueue(int capacity) {
+		checkArgument(Integer.bitCount(capacity) == 1);
+		values = new long[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) sequences.set(i, i);
+		mask = capacity - 1;
+	}
+
+	/** Returns false if the queue is full. */
+	boolean offer(long value) {
+		for (;;) {
+			final long ticket = tail.get();
+			final int i = (int) ticket & mask;
+			final long sequence = sequences.get(i);
+			if (sequence == ticket) {
+				if (!tail.compareAndSet(ticket, ticket + 1)) continue;
+				values[i] = value;
+				// Publishes the value to the consumer.
+				sequences.lazySet(i, ticket + 1);
+				return true;
+			}
+			if (sequence < ticket) return false;
+			// Another producer got the ticket, retry.
+		}
+	}
+
+	/** Moves up to {@code target.length} values into the target, must be called by the consumer only. */
+	int drainTo(long[] target) {
+		long ticket = head.get();
+		int result = 0;
+		while (result < target.length) {
+			final int i = (int) ticket & mask;
+			if (sequences.get(i) != ticket + 1) break;
+			target[result++] = values[i];
+			// Frees the slot for the producer coming a round later.
+			sequences.lazySet(i, ticket + values.length);
+			++ticket;
+		}
+		head.lazySet(ticket);
+		return result;
+	}
+
+	/** Returns the number of tickets handed out to producers. */
+	long offered() {
+		return tail.get();
+	}
+
+	/** Returns the number of values taken by the consumer. */
+	long taken() {
+		return head.get();
+	}
+
+	int capacity() {
+		return values.length;
+	}
+}
@@ -18,11 +18,17 @@ package frequency;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import com.google.common.base.Ticker;
+
 /**
  * A Bloom filter is a space and time efficient probabilistic data structure that is used to test
  * whether an element is a member of a set. False positives are possible, but false negatives are
@@ -31,6 +37,9 @@ import javax.annotation.concurrent.NotThreadSafe;
  * space advantage over other data structures for representing sets by not storing the items.
  *
  * <p>This filter resets (fully or partially clears) itself, when a limit is reached.
+ * Alternatively, it clears all its words once per configured period, see {@link TimeAging}.
+ * With coordinated aging, it gets cleared by the count-min sketch, and reaching its own limit
+ * advances the shared aging of the count-min sketch, see {@link MyCountMinFrequency#coordinateWith}.
  * 
  * @author ben.manes@gmail.com (Ben Manes)
  */
@@ -39,29 +48,63 @@ public final class MyBloomFilter implements BloomFilter {
 	private static final long SEED = 0xb492b66fbe98f273L;
 	private static final int BITS_PER_LONG_SHIFT = 6; // 64-bits
 
-	private static final double FPP = 0.03; // false positive probability
-	private static final double LOG_OF_2 = Math.log(2);
-	private static final double OPTIMAL_BITS_FACTOR = -Math.log(FPP) / (LOG_OF_2 * LOG_OF_2);
+	private static final int MAX_TABLE_SIZE = 1 << 30; // the largest power of two usable as array length
+	/** The number of keys put sequentially when close to a reset, before checking the occupancy again. */
+	private static final int MIN_PARALLEL_KEYS = 1 << 16;
 
+	private final double bitsPerElement;
+	/** The number of words probed, each with two bits, see {@link BloomSizing}. */
+	private final int probedWords;
 	private final boolean fullReset;
 	private final double occupancyRatio;
+	/**
+	 * Whether the aging is left to the owner, i.e., to {@link MyCountMinFrequency#coordinateWith(MyBloomFilter)}
+	 * or to the generation rotation of a {@link Deduplicator}.
+	 */
+	private final boolean coordinated;
+	/** The clock-driven aging, or {@code null} when aging is driven by occupancy. */
+	@Nullable private final TimeAging timeAging;
+	/** The count-min sketch aging this with coordinated aging, or {@code null}. */
+	@Nullable private MyCountMinFrequency agingOwner;
 
 	private long[] table;
 	/** A value such that x >>> tableShift si a valid index for any long x. */
 	private int tableShift;
 	/** The total number of set bits. */
-	private int occupancy;
-	private int maxOccupancy;
+	private long occupancy;
+	private long maxOccupancy;
 	private int cursor;
+	/** The number of times a word got all bits set, see {@link KeyedSpreadingFrequency}. */
+	private long saturatedWords;
 
 
 	public MyBloomFilter(MyFrequencyFactory factory) {
 		fullReset = factory.getBloomFullReset();
 		occupancyRatio = factory.getBloomOccupancyRatio();
 		checkArgument(0 < occupancyRatio && occupancyRatio < 1);
+		coordinated = factory.getCoordinatedAging();
+		bitsPerElement = BloomSizing.bitsPerElement(factory.getBloomFpp());
+		probedWords = BloomSizing.probedWords(factory.getBloomFpp());
+		final long agingPeriodNanos = factory.getBloomAgingPeriodNanos();
+		timeAging = !coordinated && agingPeriodNanos > 0 ? new TimeAging(factory.getTicker(), agingPeriodNanos) : null;
 		ensureCapacity(factory.getBloomExpectedInsertions());
 	}
 
+	/**
+	 * Creates a filter which never forgets on its own, but only when cleared by the owner.
+	 *
+	 * @param fpp the desired false positive probability at the expected insertions
+	 */
+	MyBloomFilter(@Nonnegative long expectedInsertions, double fpp) {
+		fullReset = true;
+		occupancyRatio = 1;
+		coordinated = true;
+		timeAging = null;
+		bitsPerElement = BloomSizing.bitsPerElement(fpp);
+		probedWords = BloomSizing.probedWords(fpp);
+		ensureCapacity(expectedInsertions);
+	}
+
 	/**
 	 * Initializes and increases the capacity of this <tt>BloomFilter</tt> instance, if necessary,
 	 * to ensure that it can accurately estimate the membership of elements given the expected
@@ -69,20 +112,35 @@ public final class MyBloomFilter implements BloomFilter {
 	 *
 	 * @param expectedInsertions the number of expected insertions
 	 */
-	public void ensureCapacity(@Nonnegative int expectedInsertions) {
+	public void ensureCapacity(@Nonnegative long expectedInsertions) {
 		checkArgument(expectedInsertions >= 0);
 
-		final long optimalNumberOfBits = (long) (expectedInsertions * OPTIMAL_BITS_FACTOR);
-		// The minimum optimalSize is 2 in order for tableShift to work.
-		final int optimalSize = (int) Math.max(optimalNumberOfBits >>> BITS_PER_LONG_SHIFT, 2);
+		final int optimalSize = tableLength(expectedInsertions, bitsPerElement);
 		if ((table != null) && (table.length >= optimalSize)) {
 			return;
 		}
 
-		table = new long[ceilingPowerOfTwo(optimalSize)];
+		table = new long[optimalSize];
 		tableShift = Long.numberOfLeadingZeros(table.length - 1);
 		occupancy = 0;
-		maxOccupancy = (int) (occupancyRatio * table.length * Long.SIZE);
+		maxOccupancy = timeAging != null || occupancyRatio >= 1
+				? Long.MAX_VALUE : maxOccupancy(occupancyRatio, table.length);
+	}
+
+	/**
+	 * Returns the number of words of a table for the given number of insertions, a power of two
+	 * clamped to the largest usable array length.
+	 */
+	static int tableLength(@Nonnegative long expectedInsertions, double bitsPerElement) {
+		final long optimalNumberOfBits = (long) (expectedInsertions * bitsPerElement);
+		// The minimum optimalSize is 2 in order for tableShift to work.
+		final int optimalSize = (int) Math.max(Math.min(optimalNumberOfBits >>> BITS_PER_LONG_SHIFT, MAX_TABLE_SIZE), 2);
+		return ceilingPowerOfTwo(optimalSize);
+	}
+
+	/** Returns the number of set bits of a table of the given length, at which it gets reset. */
+	static long maxOccupancy(double occupancyRatio, int tableLength) {
+		return (long) (occupancyRatio * tableLength * Long.SIZE);
 	}
 
 	/**
@@ -94,19 +152,92 @@ public final class MyBloomFilter implements BloomFilter {
 	 */
 	@Override public boolean mightContain(long e) {
 		if (!getTwo(e)) return false;
-		e = respread(e);
-		if (!getTwo(e)) return false;
+		for (int i = 1; i < probedWords; i++) {
+			e = respread(e);
+			if (!getTwo(e)) return false;
+		}
 		return true;
 	}
 
+	/**
+	 * Returns the estimated number of distinct elements currently contained, derived from the
+	 * fraction of set bits as proposed by Swamidass and Baldi.
+	 * After partial resets, the forgotten elements don't count.
+	 */
+	public long estimatedSize() {
+		final double bits = (double) table.length * Long.SIZE;
+		final double fillRatio = occupancy / bits;
+		if (fillRatio >= 1) return Long.MAX_VALUE;
+		return Math.round(-bits / (2 * probedWords) * Math.log1p(-fillRatio));
+	}
+
+	/**
+	 * Writes the changes since the last call with the same encoder, see {@link TableDelta}.
+	 *
+	 * @param out a buffer with at least {@link TableDelta#maxEncodedSize(int)} bytes remaining
+	 */
+	public void encodeDelta(TableDelta.Encoder encoder, ByteBuffer out) {
+		encoder.encode(table, out);
+	}
+
+	/** Applies changes encoded by {@link #encodeDelta} on a filter of the same size. */
+	public void applyDelta(ByteBuffer in) {
+		TableDelta.apply(table, in);
+		long bits = 0;
+		for (final long x : table) bits += Long.bitCount(x);
+		occupancy = bits;
+	}
+
+	/** Returns the number of words of the table. */
+	public int tableLength() {
+		return table.length;
+	}
+
+	long saturatedWords() {
+		return saturatedWords;
+	}
+
+	/** Makes reaching the limit advance the aging of the given sketch, which clears this. */
+	void agedBy(@Nullable MyCountMinFrequency owner) {
+		agingOwner = owner;
+	}
+
 	private void reset() {
+		if (coordinated) {
+			// Every step clears some region of this, a full sweep clears it completely.
+			while (agingOwner != null && occupancy >= maxOccupancy) agingOwner.ageStep();
+			return;
+		}
 		if (fullReset) {
 			clear();
 		} else {
-			final int i = cursor++ & (table.length-1);
-			final int bits = Long.bitCount(table[i]);
-			table[i] = 0;
-			occupancy -= bits;
+			clearNext();
+		}
+	}
+
+	private void clearNext() {
+		clearAt(cursor++ & (table.length-1));
+	}
+
+	private void clearAt(int i) {
+		occupancy -= clearAt(table, i);
+	}
+
+	/**
+	 * Clears the words covering the same hash range as the given word of another table, which
+	 * gets indexed by the topmost bits, too. Clearing a word shared with further words of the other
+	 * table happens when the first of them gets passed.
+	 *
+	 * @param otherIndex the index of the word in the other table
+	 * @param otherLength the length of the other table, a power of two
+	 */
+	void clearRegion(int otherIndex, int otherLength) {
+		if (otherLength >= table.length) {
+			final int ratio = otherLength / table.length;
+			if ((otherIndex & (ratio - 1)) == 0) clearAt(otherIndex / ratio);
+		} else {
+			final int ratio = table.length / otherLength;
+			for (int i = otherIndex * ratio; i < (otherIndex + 1) * ratio; i++) clearAt(i);
 		}
 	}
 
@@ -124,35 +255,119 @@ public final class MyBloomFilter implements BloomFilter {
 	 * @return true if the state has changed
 	 */
 	@Override public boolean put(long e) {
-		final long bitsSet = setTwo(e) + setTwo(respread(e));
+		if (timeAging != null) {
+			for (int n = timeAging.due(table.length); n > 0; n--) clearNext();
+		}
+		long bitsSet = setTwo(e);
+		for (int i = 1; i < probedWords; i++) {
+			e = respread(e);
+			bitsSet += setTwo(e);
+		}
 		occupancy += bitsSet;
 		if (occupancy >= maxOccupancy) reset();
 		return bitsSet > 0;
 	}
 
+	/**
+	 * Puts all keys between the position and the limit of the buffer into this collection, using all
+	 * threads of the pool. The result is identical to putting them one by one.
+	 *
+	 * <p>As resetting depends on the order of insertions, the keys get put in parallel in chunks
+	 * which can't trigger a reset, and sequentially when close to a reset.
+	 *
+	 * @param keys the elements to add, assumed to be already spreaded well.
+	 */
+	public void putAll(LongBuffer keys, ForkJoinPool pool) {
+		final ParallelBloomLoader.KeySetter setter = new ParallelBloomLoader.KeySetter() {
+			@Override public void set(long[] table, long e) {
+				setTwo(table, index(0, tableShift, e), e);
+				for (int i = 1; i < probedWords; i++) {
+					e = respread(e);
+					setTwo(table, index(0, tableShift, e), e);
+				}
+			}
+		};
+		int position = keys.position();
+		final int limit = keys.limit();
+		while (position < limit) {
+			// Every put sets at most two bits per word, so that these keys can't reach the limit.
+			final long safeKeys = (maxOccupancy - 1 - occupancy) / (2L * probedWords);
+			if (safeKeys < Math.min(MIN_PARALLEL_KEYS, limit - position)) {
+				final int end = Math.min(limit, position + MIN_PARALLEL_KEYS);
+				for (; position < end; position++) put(keys.get(position));
+				continue;
+			}
+			final int end = (int) Math.min(limit, position + safeKeys);
+			final LongBuffer chunk = keys.duplicate();
+			chunk.limit(end);
+			chunk.position(position);
+			ParallelBloomLoader.putAll(table, chunk, setter, pool);
+			long bits = 0;
+			for (final long x : table) bits += Long.bitCount(x);
+			occupancy = bits;
+			position = end;
+		}
+	}
+
 	private int setTwo(long e) {
-		final int index = index(e);
+		final int index = index(0, tableShift, e);
+		final int bitsSet = setTwo(table, index, e);
+		if (bitsSet != 0 && table[index] == -1L) ++saturatedWords;
+		return bitsSet;
+	}
+
+	private boolean getTwo(long e) {
+		return getTwo(table, index(0, tableShift, e), e);
+	}
+
+	/*
+	 * The word-level operations below take the table and the index, so that tables living in a
+	 * slice of a larger array, like the slabs of a TenantSketchStore, share them.
+	 */
+
+	/**
+	 * Returns the index of the word probed for the element in a table starting at the given base.
+	 *
+	 * @param tableShift the number of leading zeros of the table length minus one
+	 */
+	static int index(int base, int tableShift, long e) {
+		return base + (int) (e >>> tableShift);
+	}
+
+	/**
+	 * Sets the two bits of the element in the word without any further bookkeeping, so that it can
+	 * be used by multiple threads, and returns the number of bits which were unset before.
+	 */
+	static int setTwo(long[] table, int index, long e) {
 		final long old = table[index];
-		final long neu = old | (Long.MIN_VALUE >>> e) | (Long.MIN_VALUE >>> altShiftDistance(e));
+		final long neu = old | twoBits(e);
 		table[index] = neu;
 		return Long.bitCount(neu ^ old);
 	}
 
-	private boolean getTwo(long e) {
-		final long entry = table[index(e)];
+	/** Returns whether both bits of the element are set in the word. */
+	static boolean getTwo(long[] table, int index, long e) {
+		final long entry = table[index];
 		final long result = (entry << e) & (entry << altShiftDistance(e));
 		return result < 0;
 	}
 
-	private int index(long e) {
-		return (int) (e >>> tableShift);
+	/** Clears the word and returns the number of bits it had set. */
+	static int clearAt(long[] table, int index) {
+		final int bits = Long.bitCount(table[index]);
+		table[index] = 0;
+		return bits;
+	}
+
+	private static long twoBits(long e) {
+		return (Long.MIN_VALUE >>> e) | (Long.MIN_VALUE >>> altShiftDistance(e));
 	}
 
-	private long altShiftDistance(long e) {
+	private static long altShiftDistance(long e) {
 		return e >> BITS_PER_LONG_SHIFT;
 	}
 
-	private long respread(long e) {
+	static long respread(long e) {
 		e *= SEED;
 		e ^= (e >>> 21) ^ (e >>> 41);
 		return e;
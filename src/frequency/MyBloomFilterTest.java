@@ -0,0 +1,117 @@
+package frequency;
+
+import java.nio.LongBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+public class MyBloomFilterTest extends TestCase {
+	private static final int CAPACITY = 1 << 18;
+
+	public void testPutAllMatchesPut() {
+		for (final double occupancyRatio : new double[] {0.999, 0.3}) {
+			final MyFrequencyFactory factory = new MyFrequencyFactory();
+			factory.setBloomExpectedInsertions(CAPACITY);
+			factory.setBloomOccupancyRatio(occupancyRatio);
+			final MyBloomFilter sequential = new MyBloomFilter(factory);
+			final MyBloomFilter parallel = new MyBloomFilter(factory);
+
+			final SplittableRandom random = new SplittableRandom(9599);
+			final long[] keys = new long[CAPACITY];
+			for (int i = 0; i < CAPACITY; i++) keys[i] = random.nextLong();
+			for (final long key : keys) sequential.put(key);
+			parallel.putAll(LongBuffer.wrap(keys), new ForkJoinPool(4));
+
+			// A low ratio makes the keys reset the filter in the middle.
+			assertEquals(sequential.estimatedSize(), parallel.estimatedSize());
+			for (int i = 0; i < CAPACITY; i++) {
+				final long key = i < CAPACITY / 2 ? keys[2 * i] : random.nextLong();
+				assertEquals(sequential.mightContain(key), parallel.mightContain(key));
+			}
+		}
+	}
+
+	public void testAgingStepClearsMatchingRegion() {
+		// A single probed word makes membership depend on the word indexed by the topmost bits only.
+		for (final long cmExpectedInsertions : new long[] {1 << 6, 1 << 12}) {
+			final MyFrequencyFactory factory = new MyFrequencyFactory();
+			factory.setBloomExpectedInsertions(1 << 12);
+			factory.setBloomFpp(0.2);
+			factory.setBloomOccupancyRatio(0.999);
+			factory.setCmExpectedInsertions(cmExpectedInsertions);
+			factory.setCmCountersMultiplier(1);
+			factory.setCmOccupancyRatio(0.5);
+			factory.setCoordinatedAging(true);
+			final MyBloomFilter filter = new MyBloomFilter(factory);
+			final MyCountMinFrequency countMin = factory.newCountMin();
+			countMin.coordinateWith(filter);
+			final int filterLength = filter.tableLength();
+			final int cmLength = countMin.tableLength();
+			assertTrue(cmExpectedInsertions < 1 << 8 ? cmLength < filterLength : cmLength > filterLength);
+
+			final SplittableRandom random = new SplittableRandom(9599);
+			final long[] keys = new long[1 << 11];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextLong();
+				filter.put(keys[i]);
+			}
+			final int steps = cmLength / 4 + 1;
+			for (int i = 0; i < steps; i++) countMin.ageStep();
+			assertEquals(steps, countMin.halvedWords());
+
+			for (final long key : keys) {
+				final int word = (int) (key >>> Long.numberOfLeadingZeros(filterLength - 1));
+				// A word shared by several halved words gets cleared with the first of them.
+				final boolean cleared = cmLength >= filterLength
+						? (long) word * (cmLength / filterLength) < steps
+						: word / (filterLength / cmLength) < steps;
+				assertEquals(!cleared, filter.mightContain(key));
+			}
+		}
+	}
+
+	/**
+	 * A scan of one-hit wonders fills the doorkeeper without touching the count-min sketch.
+	 * With coordinated aging, it ages the counts of the earlier hot keys, too, as the doorkeeper
+	 * reaching its limit advances the shared cursor.
+	 */
+	public void testCoordinatedAgingUnderScan() {
+		final int[] falseAdmissions = new int[2];
+		for (final boolean coordinated : new boolean[] {false, true}) {
+			final MyFrequencyFactory factory = new MyFrequencyFactory();
+			factory.setBloomExpectedInsertions(10000);
+			factory.setBloomOccupancyRatio(0.5);
+			factory.setCmExpectedInsertions(10000);
+			factory.setCmCountersMultiplier(1);
+			factory.setCmOccupancyRatio(0.5);
+			factory.setCoordinatedAging(coordinated);
+			final MyBloomFilter filter = new MyBloomFilter(factory);
+			final MyCountMinFrequency countMin = factory.newCountMin();
+			if (coordinated) countMin.coordinateWith(filter);
+			final Frequency frequency = new FilteredFrequency(countMin, filter);
+
+			final SplittableRandom random = new SplittableRandom(9599);
+			final long hot = random.nextLong();
+			frequency.increment(hot, 11);
+			assertEquals(10, countMin.frequency(hot));
+			for (int i = 0; i < 200000; i++) frequency.increment(random.nextLong(), 1);
+			for (int i = 0; i < 10000; i++) {
+				if (frequency.frequency(random.nextLong()) > 0) ++falseAdmissions[coordinated ? 1 : 0];
+			}
+
+			if (coordinated) {
+				// The doorkeeper filled up many times, so the cursor swept the whole sketch.
+				assertTrue(countMin.halvedWords() >= countMin.tableLength());
+				assertTrue(countMin.frequency(hot) <= 5);
+			} else {
+				// The few doorkeeper false positives don't make the sketch age.
+				assertEquals(0, countMin.halvedWords());
+				assertEquals(10, countMin.frequency(hot));
+			}
+		}
+		System.out.format("false admissions: %d independent, %d coordinated\n", falseAdmissions[0], falseAdmissions[1]);
+		assertTrue(falseAdmissions[0] < 1000);
+		assertTrue(falseAdmissions[1] < 1000);
+	}
+}
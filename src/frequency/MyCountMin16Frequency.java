@@ -0,0 +1,31 @@
+package frequency;
+
+/**
+ * A count-min sketch with 16-bit counters, i.e., the maximum frequency of an element is 65535.
+ * It needs four times as much memory as {@link MyCountMin4Frequency} for the same number of counters.
+ */
+public final class MyCountMin16Frequency extends MyCountMinFrequency {
+	private static final long ONE_MASK = 0x0001000100010001L;
+	private static final long RESET_MASK = 0x7FFF * ONE_MASK;
+
+	public MyCountMin16Frequency(MyFrequencyFactory factory) {
+		this(factory, factory.getCmExpectedInsertions());
+	}
+
+	public MyCountMin16Frequency(MyFrequencyFactory factory, long expectedInsertions) {
+		super(factory, expectedInsertions, 16, RESET_MASK);
+	}
+
+	@Override int counterSum(long value) {
+		return charSum(value);
+	}
+
+	static int charSum(long value) {
+		// The sum of all four chars needs up to 18 bits, so we first add pairs into 32-bit lanes.
+		final long mask = 0x0000FFFF0000FFFFL;
+		final long a = value & mask;
+		final long b = (value >>> 16) & mask;
+		final long c = a + b;
+		return (int) ((0x0000000100000001L * c) >>> 32);
+	}
+}
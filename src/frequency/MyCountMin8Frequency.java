@@ -0,0 +1,31 @@
+package frequency;
+
+/**
+ * A count-min sketch with 8-bit counters, i.e., the maximum frequency of an element is 255.
+ * It needs twice as much memory as {@link MyCountMin4Frequency} for the same number of counters.
+ */
+public final class MyCountMin8Frequency extends MyCountMinFrequency {
+	private static final long ONE_MASK = 0x0101010101010101L;
+	private static final long RESET_MASK = 0x7F * ONE_MASK;
+
+	public MyCountMin8Frequency(MyFrequencyFactory factory) {
+		this(factory, factory.getCmExpectedInsertions());
+	}
+
+	public MyCountMin8Frequency(MyFrequencyFactory factory, long expectedInsertions) {
+		super(factory, expectedInsertions, 8, RESET_MASK);
+	}
+
+	@Override int counterSum(long value) {
+		return byteSum(value);
+	}
+
+	static int byteSum(long value) {
+		// The sum of all eight bytes needs up to 11 bits, so we first add pairs into 16-bit lanes.
+		final long mask = 0x00FF00FF00FF00FFL;
+		final long a = value & mask;
+		final long b = (value >>> 8) & mask;
+		final long c = a + b;
+		return (int) ((0x0001000100010001L * c) >>> 48);
+	}
+}
@@ -0,0 +1,498 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A probabilistic multiset for estimating the popularity of an element within a time window. The
+ * maximum frequency of an element is limited by the counter width chosen by the subclass
+ * and aging is currently implemented by clearing the data.
+ * 
+ * <p>This Frequency resets (fully or partially clears) itself, when a limit is reached.
+ * Alternatively, it halves all its counters once per configured period, see {@link TimeAging}.
+ * Optionally, its aging clears the matching region of the doorkeeper, too, see {@link #coordinateWith}.
+ */
+public abstract class MyCountMinFrequency implements Frequency {
+	private static final long SEED = 0xcbf29ce484222325L;
+	private static final int MAX_TABLE_SIZE = 1 << 30; // the largest power of two usable as array length
+
+	/** The number of bits per counter, a power of two. */
+	private final int counterBits;
+	/** The maximum value of a counter. */
+	private final int maxCount;
+	/** A mask for selecting a counter-aligned shift distance. */
+	private final int shiftMask;
+	/** A mask clearing the top bit of each counter, used for halving them all at once. */
+	private final long resetMask;
+
+	private final boolean fullReset;
+	private final double occupancyRatio;
+	private final double countersMultiplier;
+	private final boolean conservative;
+	/** The clock-driven aging, or {@code null} when aging is driven by occupancy. */
+	@Nullable private final TimeAging timeAging;
+
+	/** The doorkeeper to be aged together with this, or {@code null}. */
+	@Nullable private MyBloomFilter doorkeeper;
+
+	private long[] table;
+	/** A value such that x >>> tableShift si a valid index for any long x. */
+	private int tableShift;
+
+	/** The sum of all counters. */
+	private long occupancy;
+	private long maxOccupancy;
+	private int cursor;
+	/** The number of words halved so far, for {@link AccuracyMonitor}. */
+	private long halvedWords;
+	/** The number of times all counters were forgotten, for {@link AccuracyMonitor}. */
+	private long clears;
+	/** The number of times a word got three quarters of its counters saturated, see {@link KeyedSpreadingFrequency}. */
+	private long saturatedWords;
+
+	/**
+	 * @param expectedInsertions usually {@link MyFrequencyFactory#getCmExpectedInsertions()}
+	 */
+	MyCountMinFrequency(MyFrequencyFactory factory, long expectedInsertions, int counterBits, long resetMask) {
+		this.counterBits = counterBits;
+		maxCount = (1 << counterBits) - 1;
+		shiftMask = Long.SIZE - counterBits;
+		this.resetMask = resetMask;
+		fullReset = factory.getCmFullReset();
+		occupancyRatio = factory.getCmOccupancyRatio();
+		checkArgument(0 < occupancyRatio && occupancyRatio < 1);
+		countersMultiplier = factory.getCmCountersMultiplier();
+		conservative = factory.getCmConservative();
+		final long agingPeriodNanos = factory.getCmAgingPeriodNanos();
+		timeAging = agingPeriodNanos > 0 ? new TimeAging(factory.getTicker(), agingPeriodNanos) : null;
+		final long counters = (long) (countersMultiplier * expectedInsertions);
+		ensureCapacity(counters);
+	}
+
+	@Override public void increment(long e, int count) {
+		if (conservative) {
+			// The conservative update needs the estimate anyway.
+			frequencyThenIncrement(e, count);
+		} else {
+			ageByTime();
+			regularIncrement(e, count);
+		}
+	}
+
+	/**
+	 * Computes the positions of all four counters just once and uses them for both the estimate
+	 * and the increment.
+	 */
+	@Override public int frequencyThenIncrement(long e, int count) {
+		ageByTime();
+		final int index0 = index(e);
+		final int shift0 = shift(e);
+		e = respread1(e);
+		final int index1 = index(e);
+		final int shift1 = shift(e);
+		e = respread2(e);
+		final int index2 = index(e);
+		final int shift2 = shift(e);
+		e = respread3(e);
+		final int index3 = index(e);
+		final int shift3 = shift(e);
+
+		int result = extractAt(index0, shift0);
+		result = Math.min(result, extractAt(index1, shift1));
+		result = Math.min(result, extractAt(index2, shift2));
+		result = Math.min(result, extractAt(index3, shift3));
+		if (count <= 0) return result;
+
+		if (count > maxCount) count = maxCount;
+		if (conservative) {
+			final int newFrequency = Math.min(result + count, maxCount);
+			if (newFrequency == result) return result;
+			occupancy += maximizeAt(index0, shift0, index1, shift1, index2, shift2, index3, shift3, newFrequency);
+		} else {
+			occupancy += incrementAt(index0, shift0, count);
+			occupancy += incrementAt(index1, shift1, count);
+			occupancy += incrementAt(index2, shift2, count);
+			occupancy += incrementAt(index3, shift3, count);
+		}
+		if (occupancy >= maxOccupancy) reset();
+		return result;
+	}
+
+	@Override public int frequency(long e) {
+		int result = extract(e);
+		e = respread1(e);
+		result = Math.min(result, extract(e));
+		e = respread2(e);
+		result = Math.min(result, extract(e));
+		e = respread3(e);
+		result = Math.min(result, extract(e));
+		return result;
+	}
+
+	/**
+	 * Initializes and increases the capacity of this instance, if necessary,
+	 * to ensure that it can accurately estimate the popularity of elements given the maximum size of
+	 * the cache. This operation forgets all previous counts when resizing.
+	 *
+	 * <p>The number of counters doesn't depend on their width, so wider counters take more memory.
+	 * The table gets clamped to {@value #MAX_TABLE_SIZE} words, i.e., at most 2^34 counters of 4
+	 * bits, so that the accuracy degrades beyond that, like a sketch sized too small.
+	 *
+	 * @param maximumSize the maximum size of the cache
+	 */
+	public void ensureCapacity(@Nonnegative long maximumSize) {
+		checkArgument(maximumSize >= 0);
+		final int maximum = tableLength(maximumSize, counterBits);
+		if ((table != null) && (table.length >= maximum)) {
+			return;
+		}
+
+		table = new long[maximum];
+		tableShift = Long.numberOfLeadingZeros(table.length-1);
+		occupancy = 0;
+		++clears;
+		maxOccupancy = timeAging != null ? Long.MAX_VALUE : maxOccupancy(occupancyRatio, table.length, counterBits);
+	}
+
+	/**
+	 * Returns the number of words of a table with the given number of counters, a power of two
+	 * clamped to {@value #MAX_TABLE_SIZE}.
+	 */
+	static int tableLength(@Nonnegative long counters, int counterBits) {
+		// Clamping first, so that the multiplication can't overflow.
+		final long words = Math.min(counters, MAX_TABLE_SIZE) * counterBits / 4;
+		final int maximum = (int) Math.min(words, MAX_TABLE_SIZE);
+		// The minimum is 2 in order for tableShift to work.
+		return ceilingNextPowerOfTwo(Math.max(maximum, 2));
+	}
+
+	/** Returns the sum of all counters of a table of the given length, at which it gets reset. */
+	static long maxOccupancy(double occupancyRatio, int tableLength, int counterBits) {
+		final double coef = (double) ((1 << counterBits) - 1) / counterBits;
+		return (long) (occupancyRatio * tableLength * Long.SIZE * coef);
+	}
+
+	private void regularIncrement(long e, @Nonnegative int count) {
+		if (count > maxCount) count = maxCount;
+
+		occupancy += incrementAt(e, count);
+		e = respread1(e);
+		occupancy += incrementAt(e, count);
+		e = respread2(e);
+		occupancy += incrementAt(e, count);
+		e = respread3(e);
+		occupancy += incrementAt(e, count);
+
+		if (occupancy >= maxOccupancy) reset();
+	}
+
+	/**
+	 * Writes the changes since the last call with the same encoder, see {@link TableDelta}.
+	 *
+	 * @param out a buffer with at least {@link TableDelta#maxEncodedSize(int)} bytes remaining
+	 */
+	public void encodeDelta(TableDelta.Encoder encoder, ByteBuffer out) {
+		encoder.encode(table, out);
+	}
+
+	/** Applies changes encoded by {@link #encodeDelta} on a sketch of the same size and width. */
+	public void applyDelta(ByteBuffer in) {
+		TableDelta.apply(table, in);
+		long sum = 0;
+		for (final long x : table) sum += counterSum(x);
+		occupancy = sum;
+	}
+
+	/** Returns the number of words of the table. */
+	public int tableLength() {
+		return table.length;
+	}
+
+	/** Returns the value at which the counters saturate. */
+	public int maxCount() {
+		return maxCount;
+	}
+
+	private void ageByTime() {
+		if (timeAging != null) {
+			for (int n = timeAging.due(table.length); n > 0; n--) halveNext();
+		}
+	}
+
+	/**
+	 * Makes every aging step clear the doorkeeper region covering the same hashes as the halved word.
+	 * Then, a single cursor drives both structures, a sweep over this table sweeps the whole
+	 * doorkeeper and no element keeps a stale doorkeeper bit for longer than its counters take to
+	 * halve. The cursor advances when either of them reaches its occupancy limit, so that a scan of
+	 * one-hit wonders, which fills the doorkeeper only, ages both, too. The doorkeeper must have been
+	 * created with coordinated aging.
+	 */
+	public void coordinateWith(@Nullable MyBloomFilter doorkeeper) {
+		if (this.doorkeeper != null) this.doorkeeper.agedBy(null);
+		this.doorkeeper = doorkeeper;
+		if (doorkeeper != null) doorkeeper.agedBy(this);
+	}
+
+	/** Advances the aging by one step, as if this reached its occupancy limit. */
+	void ageStep() {
+		reset();
+	}
+
+	private void reset() {
+		if (fullReset) {
+			clear();
+			if (doorkeeper != null) doorkeeper.clear();
+		} else {
+			halveNext();
+		}
+	}
+
+	private void halveNext() {
+		final int i = cursor++ & (table.length-1);
+		++halvedWords;
+		occupancy -= counterSum(halveAt(table, i, resetMask));
+		if (doorkeeper != null) doorkeeper.clearRegion(i, table.length);
+	}
+
+	/** Returns the sum of all counters packed in the given value. */
+	abstract int counterSum(long value);
+
+	/**
+	 * Adds all counters of the other sketch to the counters of this one, saturating at the maximum.
+	 * For regular (not conservative) increments, this gives exactly the same table as incrementing
+	 * this by all increments of the other, as long as neither of them reached the reset limit.
+	 *
+	 * @param other a sketch with the same counter width and table size
+	 */
+	public void merge(MyCountMinFrequency other) {
+		checkArgument(other.counterBits == counterBits && other.table.length == table.length,
+				"Incompatible sketches.");
+		final long[] otherTable = other.table;
+		long sum = 0;
+		for (int i = 0; i < table.length; i++) {
+			table[i] = saturatingAdd(table[i], otherTable[i]);
+			sum += counterSum(table[i]);
+		}
+		occupancy = sum;
+		if (occupancy >= maxOccupancy) reset();
+	}
+
+	/** Adds the packed counters lane by lane, replacing overflown lanes by the maximum. */
+	private long saturatingAdd(long a, long b) {
+		final long high = ~resetMask;
+		// Adding the lanes without their top bits can't carry over to the next lane.
+		final long sum = ((a & resetMask) + (b & resetMask)) ^ ((a ^ b) & high);
+		final long carries = ((a & b) | ((a | b) & ~sum)) & high;
+		return sum | (carries >>> (counterBits - 1)) * maxCount;
+	}
+
+	/** Counts the word when the number of its saturated counters has just reached three quarters. */
+	private void checkSaturation(int index) {
+		// A lane of the complement is zero iff the counter is saturated, see Hacker's Delight 6-1.
+		final long complement = ~table[index];
+		final long zeroLanes = ~(((complement & resetMask) + resetMask) | complement | resetMask);
+		final int lanes = Long.SIZE / counterBits;
+		if (Long.bitCount(zeroLanes) == lanes - lanes / 4) ++saturatedWords;
+	}
+
+	long saturatedWords() {
+		return saturatedWords;
+	}
+
+	long halvedWords() {
+		return halvedWords;
+	}
+
+	long clears() {
+		return clears;
+	}
+
+	/** Forgets all counts. */
+	public void clear() {
+		Arrays.fill(table, 0L);
+		occupancy = 0;
+		++clears;
+	}
+
+	private long incrementAt(long e, int count) {
+		return incrementAt(index(e), shift(e), count);
+	}
+
+	private long incrementAt(int index, int shift, int count) {
+		final int delta = incrementAt(table, index, shift, count, maxCount);
+		if (delta != 0 && extractAt(index, shift) == maxCount) checkSaturation(index);
+		return delta;
+	}
+
+	/**
+	 * Raises the counters of all rows at once. Being separate keeps {@link #frequencyThenIncrement}
+	 * below the inlining limit, see {@link HotPathTest}.
+	 */
+	private long maximizeAt(int index0, int shift0, int index1, int shift1, int index2, int shift2,
+			int index3, int shift3, int value) {
+		return maximizeAt(index0, shift0, value) + maximizeAt(index1, shift1, value)
+				+ maximizeAt(index2, shift2, value) + maximizeAt(index3, shift3, value);
+	}
+
+	private long maximizeAt(int index, int shift, int value) {
+		final int delta = maximizeAt(table, index, shift, value, maxCount);
+		if (delta != 0 && value == maxCount) checkSaturation(index);
+		return delta;
+	}
+
+	static long respread1(long e) {
+		// This is enough as each operation uses basically the upper half of e only.
+		return Long.rotateLeft(e, 32);
+	}
+
+	static long respread2(long e) {
+		return e * SEED;
+	}
+
+	static long respread3(long e) {
+		// This is enough as each operation uses basically the upper half of e only.
+		return Long.rotateLeft(e, 32);
+	}
+
+	private int extract(long e) {
+		return extractAt(index(e), shift(e));
+	}
+
+	private int extractAt(int index, int shift) {
+		return extractAt(table, index, shift, maxCount);
+	}
+
+	private int index(long e) {
+		return index(0, tableShift, e);
+	}
+
+	private int shift(long e) {
+		return shift(shiftMask, e);
+	}
+
+	/*
+	 * The word-level operations below take the table and the index, so that tables living in a
+	 * slice of a larger array, like the slabs of a TenantSketchStore, share them.
+	 */
+
+	/**
+	 * Returns the index of the word holding the counter of the element in a table starting at the
+	 * given base.
+	 *
+	 * @param tableShift the number of leading zeros of the table length minus one
+	 */
+	static int index(int base, int tableShift, long e) {
+		return base + (int) (e >>> tableShift);
+	}
+
+	/**
+	 * Returns the position of the counter of the element within its word.
+	 *
+	 * @param shiftMask {@code Long.SIZE} minus the counter width
+	 */
+	static int shift(int shiftMask, long e) {
+		// Return a multiple of counterBits from the range [0, 64), e.g., from the set {0, 4, ..., 60}.
+		return (int) e & shiftMask;
+	}
+
+	static int extractAt(long[] table, int index, int shift, int maxCount) {
+		return (int) (table[index] >>> shift) & maxCount;
+	}
+
+	/** Adds to the counter, saturating at the maximum, and returns by how much it grew. */
+	static int incrementAt(long[] table, int index, int shift, int count, int maxCount) {
+		// Rereading is necessary, as two rows may share the counter.
+		final long old = (table[index] >>> shift) & maxCount;
+		final long neu = Math.min(old + count, maxCount);
+		final long delta = neu - old;
+		table[index] += delta << shift;
+		return (int) delta;
+	}
+
+	/** Raises the counter to at least the value and returns by how much it grew. */
+	static int maximizeAt(long[] table, int index, int shift, int value, int maxCount) {
+		final long old = (table[index] >>> shift) & maxCount;
+		final long neu = Math.max(old, value);
+		final long delta = neu - old;
+		table[index] += delta << shift;
+		return (int) delta;
+	}
+
+	/**
+	 * Halves all counters of the word and returns the removed amounts packed like the counters,
+	 * to be summed up by {@link #counterSum}.
+	 *
+	 * @param resetMask a mask clearing the top bit of each counter
+	 */
+	static long halveAt(long[] table, int index, long resetMask) {
+		final long old = table[index];
+		final long neu = (old >>> 1) & resetMask;
+		table[index] = neu;
+		return old - neu;
+	}
+
+	/**
+	 * Copies the counters into a read-only snapshot. The given snapshot gets reused when its table
+	 * has the right size, otherwise a new one gets allocated.
+	 *
+	 * @param reuse a snapshot no longer needed or {@code null}
+	 */
+	public Snapshot snapshot(@Nullable Snapshot reuse) {
+		final Snapshot result = reuse != null && reuse.table.length == table.length && reuse.maxCount == maxCount
+				? reuse : new Snapshot(new long[table.length], tableShift, shiftMask, maxCount);
+		System.arraycopy(table, 0, result.table, 0, table.length);
+		return result;
+	}
+
+	/**
+	 * A read-only copy of the counters of a {@link MyCountMinFrequency}. It doesn't synchronize and
+	 * relies on being published safely. It gets overwritten when passed to {@link #snapshot(Snapshot)}.
+	 */
+	public static final class Snapshot implements Frequency {
+		Snapshot(long[] table, int tableShift, int shiftMask, int maxCount) {
+			this.table = table;
+			this.tableShift = tableShift;
+			this.shiftMask = shiftMask;
+			this.maxCount = maxCount;
+		}
+
+		@Override public int frequency(long e) {
+			int result = extract(e);
+			e = respread1(e);
+			result = Math.min(result, extract(e));
+			e = respread2(e);
+			result = Math.min(result, extract(e));
+			e = respread3(e);
+			result = Math.min(result, extract(e));
+			return result;
+		}
+
+		/** @throws UnsupportedOperationException always */
+		@Override public void increment(long e, int count) {
+			throw new UnsupportedOperationException("A snapshot can't be changed.");
+		}
+
+		private int extract(long e) {
+			final int index = (int) (e >>> tableShift);
+			final int shift = (int) e & shiftMask;
+			return (int) (table[index] >>> shift) & maxCount;
+		}
+
+		private final long[] table;
+		private final int tableShift;
+		private final int shiftMask;
+		private final int maxCount;
+	}
+
+	private static int ceilingNextPowerOfTwo(int x) {
+		// From Hacker's Delight, Chapter 3, Harry S. Warren Jr.
+		return 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(x - 1));
+	}
+}
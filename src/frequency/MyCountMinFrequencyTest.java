@@ -0,0 +1,187 @@
+package frequency;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+public class MyCountMinFrequencyTest extends TestCase {
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testCounterSums() {
+		for (int n = 0; n < 10000; n++) {
+			final long value = random.nextLong();
+			assertEquals(naiveSum(value, 4), MyCountMin4Frequency.nibbleSum(value));
+			assertEquals(naiveSum(value, 8), MyCountMin8Frequency.byteSum(value));
+			assertEquals(naiveSum(value, 16), MyCountMin16Frequency.charSum(value));
+		}
+	}
+
+	public void testResolution() {
+		for (final int bits : new int[] {4, 8, 16}) {
+			final Frequency frequency = newFactory(bits, 1 << 10).newCountMin();
+			final long hot = random.nextLong();
+			final long veryHot = random.nextLong();
+			frequency.increment(hot, 20);
+			frequency.increment(veryHot, 200);
+			if (bits == 4) {
+				assertEquals(frequency.frequency(hot), frequency.frequency(veryHot));
+			} else {
+				assertTrue(frequency.frequency(hot) < frequency.frequency(veryHot));
+			}
+		}
+	}
+
+	public void testTimeAging() {
+		final long[] now = new long[1];
+		final MyFrequencyFactory factory = newFactory(4, 1 << 10);
+		factory.setCmAgingPeriodNanos(1000000);
+		factory.setTicker(new Ticker() {
+			@Override public long read() {
+				return now[0];
+			}
+		});
+		final MyCountMinFrequency frequency = factory.newCountMin();
+		final int catchUpCalls = frequency.tableLength() / TimeAging.MAX_CHUNK;
+		final long key = random.nextLong();
+		frequency.increment(key, 12);
+		// Heavy traffic within a tiny time span doesn't age anything.
+		for (int i = 0; i < 100000; i++) frequency.increment(1, 1);
+		assertEquals(12, frequency.frequency(key));
+		// The same traffic spread over a whole period ages everything once.
+		for (int i = 0; i < 100000; i++) {
+			now[0] += 10;
+			frequency.increment(1, 1);
+		}
+		assertEquals(6, frequency.frequency(key));
+		// A few calls in a quiet period age everything once, too, with the rest caught up later.
+		for (int i = 0; i < 4; i++) {
+			now[0] += 250000;
+			frequency.increment(1, 1);
+		}
+		for (int i = 0; i < catchUpCalls; i++) frequency.increment(1, 1);
+		assertEquals(3, frequency.frequency(key));
+		// After a long idle time, everything gets aged just once, in bounded chunks.
+		now[0] += 10000000;
+		for (int i = 0; i < 2 * catchUpCalls; i++) {
+			final long halvedWords = frequency.halvedWords();
+			frequency.increment(1, 1);
+			assertTrue(frequency.halvedWords() - halvedWords <= TimeAging.MAX_CHUNK);
+		}
+		assertEquals(1, frequency.frequency(key));
+	}
+
+	public void testTimeAgingChunks() {
+		final long[] now = new long[1];
+		final MyFrequencyFactory factory = newFactory(4, 1 << 16);
+		factory.setCmAgingPeriodNanos(1000000);
+		factory.setTicker(new Ticker() {
+			@Override public long read() {
+				return now[0];
+			}
+		});
+		final MyCountMinFrequency frequency = factory.newCountMin();
+		assertTrue(frequency.tableLength() > 16 * TimeAging.MAX_CHUNK);
+		// Idling for several periods owes one sweep, paid off by many calls instead of the first one.
+		now[0] += 5000000;
+		int calls = 0;
+		while (frequency.halvedWords() < frequency.tableLength()) {
+			final long halvedWords = frequency.halvedWords();
+			frequency.increment(calls, 1);
+			assertTrue(frequency.halvedWords() - halvedWords <= TimeAging.MAX_CHUNK);
+			++calls;
+		}
+		assertEquals(frequency.tableLength() / TimeAging.MAX_CHUNK, calls);
+	}
+
+	public void testTableLengthIsClamped() {
+		assertEquals(2, MyCountMinFrequency.tableLength(0, 4));
+		assertEquals(1 << 20, MyCountMinFrequency.tableLength(1 << 20, 4));
+		assertEquals(1 << 21, MyCountMinFrequency.tableLength(1 << 20, 8));
+		assertEquals(1 << 30, MyCountMinFrequency.tableLength(1L << 30, 4));
+		assertEquals(1 << 30, MyCountMinFrequency.tableLength(1L << 29, 16));
+		assertEquals(1 << 30, MyCountMinFrequency.tableLength(Long.MAX_VALUE, 16));
+	}
+
+	public void testBenchmark() {
+		System.out.println("bits\tns/op");
+		for (final int bits : new int[] {4, 8, 16}) {
+			final Frequency frequency = newFactory(bits, 1 << 20).newCountMin();
+			final long[] keys = new long[1 << 16];
+			for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong();
+			long sum = 0;
+			long nanos = 0;
+			for (int round = 0; round < 20; round++) {
+				final long start = System.nanoTime();
+				for (final long key : keys) {
+					frequency.increment(key, 1);
+					sum += frequency.frequency(key);
+				}
+				nanos = System.nanoTime() - start;
+			}
+			assertTrue(sum > 0);
+			System.out.format("%4d\t%5.1f\n", bits, (double) nanos / keys.length);
+		}
+	}
+
+	public void testMerge() {
+		for (final int bits : new int[] {4, 8, 16}) {
+			final MyFrequencyFactory factory = newFactory(bits, 1 << 16);
+			// Skewed, so that many counters saturate.
+			final long[] keys = new long[1 << 18];
+			for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong() >> random.nextInt(64);
+			final MyCountMinFrequency sequential = factory.newCountMin();
+			for (final long key : keys) sequential.increment(key, 1);
+			final MyCountMinFrequency collected = Arrays.stream(keys).boxed().parallel().collect(factory.toCountMin());
+			final MyCountMinFrequency built = factory.newCountMin(Arrays.stream(keys).parallel());
+			for (final long key : keys) {
+				assertEquals(sequential.frequency(key), collected.frequency(key));
+				assertEquals(sequential.frequency(key), built.frequency(key));
+			}
+		}
+	}
+
+	public void testFrequencyThenIncrement() {
+		for (final boolean conservative : new boolean[] {false, true}) {
+			for (final boolean filtered : new boolean[] {false, true}) {
+				final MyFrequencyFactory factory = newFactory(4, 1 << 10);
+				factory.setCmConservative(conservative);
+				factory.setBloomExpectedInsertions(1 << 10);
+				factory.setBloomOccupancyRatio(0.5);
+				final Frequency combined = filtered
+						? new FilteredFrequency(factory.newCountMin(), new MyBloomFilter(factory))
+						: factory.newCountMin();
+				final Frequency separate = filtered
+						? new FilteredFrequency(factory.newCountMin(), new MyBloomFilter(factory))
+						: factory.newCountMin();
+				// Skewed keys and small sketches, so that there are saturated counters and resets.
+				for (int n = 0; n < 1 << 18; n++) {
+					final long key = random.nextLong() >> random.nextInt(48);
+					final int count = 1 + random.nextInt(3);
+					final int expected = separate.frequency(key);
+					separate.increment(key, count);
+					assertEquals(conservative + " " + filtered, expected, combined.frequencyThenIncrement(key, count));
+				}
+			}
+		}
+	}
+
+	private static int naiveSum(long value, int bits) {
+		int result = 0;
+		for (int shift = 0; shift < Long.SIZE; shift += bits) {
+			result += (value >>> shift) & ((1L << bits) - 1);
+		}
+		return result;
+	}
+
+	private static MyFrequencyFactory newFactory(int bits, int expectedInsertions) {
+		final MyFrequencyFactory result = new MyFrequencyFactory();
+		result.setCmCounterBits(bits);
+		result.setCmExpectedInsertions(expectedInsertions);
+		result.setCmCountersMultiplier(1);
+		result.setCmOccupancyRatio(0.5);
+		return result;
+	}
+}
@@ -1,33 +1,207 @@
 package frequency;
 
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.LongStream;
+
+import com.google.common.base.Ticker;
 
 import lombok.Getter;
 import lombok.Setter;
 
 
 @Getter @Setter public class MyFrequencyFactory {
-	private int expectedInsertions;
+	private long expectedInsertions;
 	private long randomSeed = ThreadLocalRandom.current().nextLong();
+	/** The clock used for aging by time. */
+	private Ticker ticker = Ticker.systemTicker();
 	private boolean fullReset;
 	private boolean conservative;
 	private double countersMultiplier;
 
 	private boolean bloomFullReset;
-	private int bloomExpectedInsertions;
+	private long bloomExpectedInsertions;
 	private double bloomOccupancyRatio;
+	/** The target false positive probability, determining the size and the probes, see {@link BloomSizing}. */
+	private double bloomFpp = BloomSizing.DEFAULT_FPP;
+	/** The period in which every word of the filter gets cleared, zero for aging by occupancy. */
+	private long bloomAgingPeriodNanos;
 
 	private boolean cmFullReset;
-	private int cmExpectedInsertions;
+	private long cmExpectedInsertions;
 	private double cmOccupancyRatio;
 	private double cmCountersMultiplier;
 	private boolean cmConservative;
+	/** The period in which every counter gets halved, zero for aging by occupancy. */
+	private long cmAgingPeriodNanos;
+	/** The width of the count-min counters, one of 4, 8 and 16. */
+	private int cmCounterBits = 4;
+
+	/** Whether the count-min aging clears the doorkeeper, see {@link MyCountMinFrequency#coordinateWith}. */
+	private boolean coordinatedAging;
+
+	/** The number of slots of the {@link BatchingFrequency}, must be a power of two. */
+	private int batchSlots = 16;
+
+	/** The number of increments after which a {@link SnapshotFrequency} publishes a new copy. */
+	private int snapshotMaxPendingIncrements = 1 << 16;
+	/** The age after which a {@link SnapshotFrequency} publishes a new copy. */
+	private long snapshotMaxStalenessNanos = 100_000_000;
+	/** The executor publishing the pending increments of a {@link SnapshotFrequency} after a lull, or {@code null}. */
+	private ScheduledExecutorService snapshotScheduler;
+
+	/** The number of {@link ShardedFrequency} shards, rounded up to a power of two, zero for the number of cores. */
+	private int shards;
+
+	/** The log2 of the ratio of all keys to keys tracked exactly by an {@link AccuracyMonitor}. */
+	private int accuracySampleShift = 10;
+	/** The maximum number of keys tracked exactly by an {@link AccuracyMonitor}. */
+	private int accuracySampleCapacity = 1 << 12;
+
+	/** The number of events per {@link Deduplicator} generation, zero for generations by time. */
+	private long dedupWindowEvents;
+	/** The duration of a {@link Deduplicator} generation when not by events. */
+	private long dedupWindowNanos;
+
+	/** Whether to spread by a keyed hash and reseed on flooding, see {@link KeyedSpreadingFrequency}. */
+	private boolean keyedSpreading;
+	/** The number of abnormally saturated words per period triggering reseeding, see {@link KeyedSpreadingFrequency}. */
+	private int floodingThreshold = 4;
+
+	/** The recorder of the spread keys incremented, or {@code null}, see {@link RecordingFrequency}. */
+	private TraceRecorder traceRecorder;
+
+	/** Whether a {@link SizingFrequency} should grow the filter and the sketch with the working set. */
+	private boolean autoSizing;
+	/** The precision of the {@link HyperLogLog} used for auto-sizing. */
+	private int hllPrecision = 12;
+	/** The upper limit for auto-sizing. */
+	private long maxExpectedInsertions = Long.MAX_VALUE;
 
 	public Frequency newFrequency() {
+		return newFrequency(newCountMin());
+	}
+
+	/**
+	 * Returns the same chain as {@link #newFrequency()} wrapped in an {@link AccuracyMonitor}
+	 * tracking exact counts of a sample of the keys.
+	 */
+	public AccuracyMonitor newMonitoredFrequency() {
+		final MyCountMinFrequency countMin = newCountMin();
+		return new AccuracyMonitor(newFrequency(countMin), countMin, this);
+	}
+
+	private Frequency newFrequency(MyCountMinFrequency simpleFrequency) {
 		final MyBloomFilter filter = new MyBloomFilter(this);
-		final MyCountMin4Frequency simpleFrequency = new MyCountMin4Frequency(this);
-		final BatchingFrequency batchingFrequency = new BatchingFrequency(simpleFrequency);
+		if (coordinatedAging) simpleFrequency.coordinateWith(filter);
+		final BatchingFrequency batchingFrequency = new BatchingFrequency(simpleFrequency, batchSlots);
 		final FilteredFrequency filteredFrequency = new FilteredFrequency(batchingFrequency, filter);
-		return new SpreadingFrequency(filteredFrequency, randomSeed);
+		final Frequency sizingFrequency = autoSizing
+				? new SizingFrequency(filteredFrequency, filter, simpleFrequency, this)
+				: filteredFrequency;
+		final Frequency recordingFrequency = traceRecorder != null
+				? new RecordingFrequency(sizingFrequency, traceRecorder)
+				: sizingFrequency;
+		return keyedSpreading
+				? new KeyedSpreadingFrequency(recordingFrequency, filter, simpleFrequency, batchingFrequency, this)
+				: new SpreadingFrequency(recordingFrequency, randomSeed);
+	}
+
+	/**
+	 * Returns a count-min sketch split into shards for concurrent increments,
+	 * see {@link ShardedFrequency}. There's no doorkeeper, as it'd be shared.
+	 */
+	public Frequency newShardedFrequency() {
+		final int count = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+		final MyCountMinFrequency[] array = new MyCountMinFrequency[Integer.highestOneBit(2 * count - 1)];
+		for (int i = 0; i < array.length; i++) array[i] = newCountMin(cmExpectedInsertions / array.length);
+		return new SpreadingFrequency(new ShardedFrequency(array), randomSeed);
+	}
+
+	/**
+	 * Returns a count-min sketch with a single writer and lock-free readers,
+	 * see {@link SnapshotFrequency}. There's no doorkeeper, as it'd need its own snapshots.
+	 */
+	public Frequency newSnapshotFrequency() {
+		final SnapshotFrequency snapshotFrequency =
+				new SnapshotFrequency(newCountMin(), snapshotMaxPendingIncrements, snapshotMaxStalenessNanos,
+						snapshotScheduler);
+		return new SpreadingFrequency(snapshotFrequency, randomSeed);
+	}
+
+	/**
+	 * Returns a deduplicator remembering keys for one to two windows given by {@link #dedupWindowEvents}
+	 * or {@link #dedupWindowNanos}. With windows by time, {@link #bloomExpectedInsertions} is the
+	 * expected number of distinct keys per window.
+	 */
+	public Deduplicator newDeduplicator() {
+		return new Deduplicator(this);
+	}
+
+	/**
+	 * Returns a collector building one count-min sketch per split of a (possibly parallel) stream of
+	 * keys, each counted once, and merging them, see {@link MyCountMinFrequency#merge}.
+	 *
+	 * @see #newCountMin()
+	 */
+	public Collector<Long, ?, MyCountMinFrequency> toCountMin() {
+		return Collector.of(countMinSupplier(),
+				new BiConsumer<MyCountMinFrequency, Long>() {
+					@Override public void accept(MyCountMinFrequency frequency, Long e) {
+						frequency.increment(e, 1);
+					}
+				},
+				new BinaryOperator<MyCountMinFrequency>() {
+					@Override public MyCountMinFrequency apply(MyCountMinFrequency a, MyCountMinFrequency b) {
+						a.merge(b);
+						return a;
+					}
+				},
+				Collector.Characteristics.IDENTITY_FINISH, Collector.Characteristics.UNORDERED);
+	}
+
+	/** Builds a count-min sketch from the stream without boxing, like {@link #toCountMin()} does. */
+	public MyCountMinFrequency newCountMin(LongStream keys) {
+		return keys.collect(countMinSupplier(),
+				new ObjLongConsumer<MyCountMinFrequency>() {
+					@Override public void accept(MyCountMinFrequency frequency, long e) {
+						frequency.increment(e, 1);
+					}
+				},
+				new BiConsumer<MyCountMinFrequency, MyCountMinFrequency>() {
+					@Override public void accept(MyCountMinFrequency a, MyCountMinFrequency b) {
+						a.merge(b);
+					}
+				});
+	}
+
+	private Supplier<MyCountMinFrequency> countMinSupplier() {
+		return new Supplier<MyCountMinFrequency>() {
+			@Override public MyCountMinFrequency get() {
+				return newCountMin();
+			}
+		};
+	}
+
+	public MyCountMinFrequency newCountMin() {
+		return newCountMin(cmExpectedInsertions);
+	}
+
+	/**
+	 * Returns a count-min sketch like {@link #newCountMin()} does, but sized for the given number
+	 * of insertions instead of {@link #getCmExpectedInsertions()}.
+	 */
+	public MyCountMinFrequency newCountMin(long expectedInsertions) {
+		switch (cmCounterBits) {
+			case 4: return new MyCountMin4Frequency(this, expectedInsertions);
+			case 8: return new MyCountMin8Frequency(this, expectedInsertions);
+			case 16: return new MyCountMin16Frequency(this, expectedInsertions);
+			default: throw new IllegalArgumentException("Unsupported counter width: " + cmCounterBits);
+		}
 	}
 }
@@ -0,0 +1,104 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Puts many keys into a Bloom filter table using all threads of a {@link ForkJoinPool}.
+ *
+ * <p>The keys get split into one chunk per thread. The first chunk goes directly into the target
+ * table, the others into private tables of the same size, which finally get ORed into the target.
+ * As setting bits commutes, the result is bit-identical to putting the keys one after another.
+ * The price is one temporary table per additional thread, so a smaller pool should be used when
+ * memory is tight.
+ */
+public final class ParallelBloomLoader {
+	/** Sets all the bits of the key in the given table, which is the filter's one or a copy of it. */
+	public interface KeySetter {
+		void set(long[] table, long e);
+	}
+
+	/** Chunks smaller than this don't pay off the cost of an additional table. */
+	private static final int MIN_CHUNK_SIZE = 1 << 16;
+	/** The number of words ORed by a single task. */
+	private static final int OR_CHUNK_SIZE = 1 << 16;
+
+	private ParallelBloomLoader() {
+	}
+
+	/**
+	 * Puts all keys between the position and the limit of the buffer into the table.
+	 * The buffer may be a view of a memory-mapped file, its position doesn't get changed.
+	 */
+	public static void putAll(@Nonnull long[] table, @Nonnull LongBuffer keys, @Nonnull KeySetter setter,
+			@Nonnull ForkJoinPool pool) {
+		final int from = keys.position();
+		final int size = keys.remaining();
+		final int parts = Math.max(1, Math.min(pool.getParallelism(), size / MIN_CHUNK_SIZE));
+		if (parts == 1) {
+			put(table, keys, from, from + size, setter);
+			return;
+		}
+		final long[][] tables = new long[parts][];
+		tables[0] = table;
+		final List<RecursiveAction> tasks = new ArrayList<>(parts);
+		for (int i = 0; i < parts; i++) {
+			final int part = i;
+			final int start = from + (int) ((long) size * part / parts);
+			final int end = from + (int) ((long) size * (part + 1) / parts);
+			tasks.add(new RecursiveAction() {
+				@Override protected void compute() {
+					if (part > 0) tables[part] = new long[table.length];
+					put(tables[part], keys, start, end, setter);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			@Override protected void compute() {
+				ForkJoinTask.invokeAll(tasks);
+				new OrTask(tables, 0, table.length).compute();
+			}
+		});
+	}
+
+	private static void put(long[] table, LongBuffer keys, int start, int end, KeySetter setter) {
+		for (int i = start; i < end; i++) setter.set(table, keys.get(i));
+	}
+
+	/** ORs the given range of all the tables into the first one. */
+	private static final class OrTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		OrTask(long[][] tables, int start, int end) {
+			checkArgument(start <= end);
+			this.tables = tables;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override protected void compute() {
+			if (end - start > OR_CHUNK_SIZE) {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new OrTask(tables, start, middle), new OrTask(tables, middle, end));
+				return;
+			}
+			final long[] target = tables[0];
+			for (int t = 1; t < tables.length; t++) {
+				final long[] source = tables[t];
+				for (int i = start; i < end; i++) target[i] |= source[i];
+			}
+		}
+
+		private final long[][] tables;
+		private final int start;
+		private final int end;
+	}
+}
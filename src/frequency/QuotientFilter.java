@@ -0,0 +1,383 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A quotient filter storing a fingerprint and a small counter per element, which makes it both a
+ * {@link BloomFilter} and a {@link Frequency} for low counts, e.g., a replacement for a
+ * {@link FilteredFrequency} with its doorkeeper and a small count-min sketch.
+ *
+ * <p>The topmost bits of the hash, the quotient, select the home slot and the following
+ * {@link #remainderBits()} bits, the remainder, get stored. The slots are kept sorted by the
+ * quotient and the remainder using linear probing with Robin Hood ordering, so a lookup scans a few
+ * neighboring slots only. Instead of the three metadata bits of the classical quotient filter, every
+ * slot stores its distance from the home slot, which is limited to {@value #MAX_DISTANCE}. The table
+ * has {@value #MAX_DISTANCE} extra slots at the end, so that it never wraps around.
+ *
+ * <p>As the fingerprints are sorted, the table can be doubled in linear time without the keys, by
+ * moving the topmost remainder bit to the quotient. This loses one bit of the remainder and so
+ * doubles the false positive probability. For the same reason, two filters of the same size can be
+ * merged in linear time, adding their counts.
+ *
+ * <p>A slot consists of the remainder, the count saturating at {@value #MAX_COUNT} and the distance,
+ * taking {@link #remainderBits()}, 8 and 8 bits. The slots are packed into an array of longs
+ * without any gaps, so that a slot may span two longs. An empty slot has count zero.
+ *
+ * <p>This isn't a compact structure: at 3% false positives, the remainder takes 5 bits, the slot
+ * 21 bits and an element about 26 bits at the maximum load, and up to twice that just after the
+ * table got sized to a power of two. A {@link MyBloomFilter} doorkeeper needs about 7.3 bits per
+ * element and the count-min sketch behind it 4 bits per counter. This pays off only where exact
+ * small counts, lossless doubling or merging are needed.
+ */
+@NotThreadSafe
+public final class QuotientFilter implements BloomFilter, Frequency {
+	static final int MAX_REMAINDER_BITS = 16;
+	/** The minimum number of remainder bits for doubling to be allowed, one bit gives a 50% false positive probability. */
+	static final int MIN_REMAINDER_BITS = 4;
+	static final int MAX_COUNT = 0xFF;
+	static final int MAX_DISTANCE = 0xFF;
+	private static final int MAX_QUOTIENT_BITS = 30;
+	private static final double MAX_LOAD = 0.8;
+
+	private static final int REMAINDER_SHIFT = 16;
+	private static final int COUNT_SHIFT = 8;
+
+	/** The number of topmost bits of the hash selecting the home slot. */
+	private int quotientBits;
+	/** The number of bits of the remainder. */
+	private int remainderBits;
+	private int remainderMask;
+	/** The number of bits of a slot. */
+	private int slotBits;
+	private long slotMask;
+	/** The packed slots. */
+	private long[] words;
+	/** The number of slots including the extra ones. */
+	private int slotCount;
+	private int size;
+	private int maxSize;
+
+	/**
+	 * @param expectedInsertions the number of distinct elements expected
+	 * @param remainderBits the number of bits stored per element determining the false positive probability
+	 */
+	public QuotientFilter(@Nonnegative long expectedInsertions, int remainderBits) {
+		checkArgument(expectedInsertions >= 0);
+		checkArgument(MIN_REMAINDER_BITS <= remainderBits && remainderBits <= MAX_REMAINDER_BITS);
+		final long capacity = Math.max((long) (expectedInsertions / MAX_LOAD), 64);
+		quotientBits = Math.min(64 - Long.numberOfLeadingZeros(capacity - 1), MAX_QUOTIENT_BITS);
+		setRemainderBits(remainderBits);
+		allocate();
+	}
+
+	public QuotientFilter(@Nonnegative long expectedInsertions) {
+		this(expectedInsertions, MAX_REMAINDER_BITS);
+	}
+
+	/**
+	 * Returns the number of remainder bits giving the false positive probability at full load,
+	 * which doubles with every doubling of the table.
+	 */
+	public static int remainderBits(double fpp) {
+		checkArgument(0 < fpp && fpp < 1);
+		// A query compares the remainders of about MAX_LOAD elements sharing its home slot.
+		final int result = (int) Math.ceil(Math.log(MAX_LOAD / fpp) / Math.log(2));
+		return Math.max(MIN_REMAINDER_BITS, Math.min(result, MAX_REMAINDER_BITS));
+	}
+
+	@Override public boolean mightContain(long e) {
+		return find(e) >= 0;
+	}
+
+	/**
+	 * Returns the approximate number of times the element was put, saturating at {@value #MAX_COUNT}.
+	 * It may be higher due to colliding fingerprints or non-zero for an element never put.
+	 */
+	@Override public int frequency(long e) {
+		final int i = find(e);
+		return i < 0 ? 0 : count(get(i));
+	}
+
+	/** Increments the count of the element by one. */
+	@Override public boolean put(long e) {
+		return add(e, 1);
+	}
+
+	@Override public void increment(long e, int count) {
+		if (count > 0) add(e, count);
+	}
+
+	/** Returns the number of distinct fingerprints stored. */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the number of slots excluding the extra ones. */
+	public int capacity() {
+		return 1 << quotientBits;
+	}
+
+	public int remainderBits() {
+		return remainderBits;
+	}
+
+	/** Returns the number of bits per slot, i.e., the memory per element at full load divided by {@value #MAX_LOAD}. */
+	int slotBits() {
+		return slotBits;
+	}
+
+	@Override public void clear() {
+		Arrays.fill(words, 0L);
+		size = 0;
+	}
+
+	/**
+	 * Doubles the table until it can hold the given number of elements or no more remainder bits can
+	 * be spared.
+	 */
+	public void ensureCapacity(@Nonnegative long expectedInsertions) {
+		while (expectedInsertions > (long) (capacity() * MAX_LOAD) && canGrow()) grow();
+	}
+
+	/**
+	 * Adds the counts of the other filter to this one.
+	 *
+	 * @param other a filter with the same capacity and the same number of remainder bits
+	 */
+	public void merge(QuotientFilter other) {
+		checkArgument(other.quotientBits == quotientBits && other.remainderBits == remainderBits,
+				"Incompatible filters.");
+		final long[] fingerprints = new long[size + other.size];
+		final int[] counts = new int[fingerprints.length];
+		int n = 0;
+		int i = nextOccupied(0);
+		int j = other.nextOccupied(0);
+		while (i < slotCount || j < other.slotCount) {
+			final long a = i < slotCount ? key(i) : Long.MAX_VALUE;
+			final long b = j < other.slotCount ? other.key(j) : Long.MAX_VALUE;
+			if (a <= b) {
+				fingerprints[n] = fingerprint(a);
+				counts[n] = count(get(i));
+				i = nextOccupied(i + 1);
+				if (a == b) {
+					counts[n] = Math.min(counts[n] + count(other.get(j)), MAX_COUNT);
+					j = other.nextOccupied(j + 1);
+				}
+			} else {
+				fingerprints[n] = fingerprint(b);
+				counts[n] = count(other.get(j));
+				j = other.nextOccupied(j + 1);
+			}
+			++n;
+		}
+		while (n > (long) (capacity() * MAX_LOAD) && canGrow()) moveRemainderBit();
+		layout(fingerprints, counts, n);
+	}
+
+	/**
+	 * Halves all counts, forgetting the elements put only once. This is the aging used when the
+	 * table is full and can't grow anymore.
+	 */
+	public void halve() {
+		final long[] fingerprints = new long[size];
+		final int[] counts = new int[size];
+		int n = 0;
+		for (int i = nextOccupied(0); i < slotCount; i = nextOccupied(i + 1)) {
+			final int count = count(get(i)) >>> 1;
+			if (count == 0) continue;
+			fingerprints[n] = fingerprint(key(i));
+			counts[n] = count;
+			++n;
+		}
+		layout(fingerprints, counts, n);
+	}
+
+	private boolean add(long e, int count) {
+		// Make room before adding a new fingerprint, as halving afterwards could drop it again.
+		if (size >= maxSize && find(e) < 0) makeRoom();
+		for (;;) {
+			final int result = tryAdd(home(e), remainder(e), Math.min(count, MAX_COUNT));
+			if (result >= 0) return result > 0;
+			makeRoom();
+		}
+	}
+
+	/** Returns 1 if the fingerprint was added, 0 if its count was incremented, -1 if there was no room. */
+	private int tryAdd(int home, int remainder, int count) {
+		final long key = key(home, remainder);
+		int i = home;
+		int slot;
+		while (i < slotCount && (slot = get(i)) != 0 && storedKey(i, slot) < key) ++i;
+		if (i - home > MAX_DISTANCE || i == slotCount) return -1;
+		slot = get(i);
+		if (slot != 0 && storedKey(i, slot) == key) {
+			set(i, withCount(slot, Math.min(count(slot) + count, MAX_COUNT)));
+			return 0;
+		}
+		// Find the end of the cluster and make sure all shifted elements stay within their limits.
+		int end = i;
+		while ((slot = get(end)) != 0) {
+			if ((slot & MAX_DISTANCE) == MAX_DISTANCE) return -1;
+			if (++end == slotCount) return -1;
+		}
+		// Shift the cluster by one, incrementing the distances, which are in the lowest bits.
+		for (int k = end; k > i; k--) set(k, get(k - 1) + 1);
+		set(i, slot(remainder, count, i - home));
+		++size;
+		return 1;
+	}
+
+	private void makeRoom() {
+		if (canGrow()) {
+			grow();
+		} else {
+			halve();
+		}
+	}
+
+	private boolean canGrow() {
+		return quotientBits < MAX_QUOTIENT_BITS && remainderBits > MIN_REMAINDER_BITS;
+	}
+
+	/** Doubles the table by moving the topmost remainder bit to the quotient. */
+	private void grow() {
+		final long[] fingerprints = new long[size];
+		final int[] counts = new int[size];
+		int n = 0;
+		for (int i = nextOccupied(0); i < slotCount; i = nextOccupied(i + 1)) {
+			fingerprints[n] = fingerprint(key(i));
+			counts[n] = count(get(i));
+			++n;
+		}
+		moveRemainderBit();
+		layout(fingerprints, counts, n);
+	}
+
+	private void moveRemainderBit() {
+		++quotientBits;
+		setRemainderBits(remainderBits - 1);
+	}
+
+	/**
+	 * Puts the sorted fingerprints into a fresh table. Should a cluster get too long, which is
+	 * extremely unlikely at the maximum load, it grows the table or loses the remaining elements.
+	 */
+	private void layout(long[] fingerprints, int[] counts, int n) {
+		for (;;) {
+			allocate();
+			if (tryLayout(fingerprints, counts, n) || !canGrow()) return;
+			moveRemainderBit();
+		}
+	}
+
+	private boolean tryLayout(long[] fingerprints, int[] counts, int n) {
+		int last = -1;
+		for (int k = 0; k < n; k++) {
+			final int home = home(fingerprints[k]);
+			final int position = Math.max(home, last + 1);
+			if (position - home > MAX_DISTANCE || position == slotCount) return false;
+			set(position, slot(remainder(fingerprints[k]), counts[k], position - home));
+			last = position;
+			++size;
+		}
+		return true;
+	}
+
+	private int find(long e) {
+		final int home = home(e);
+		final long key = key(home, remainder(e));
+		for (int i = home; i < slotCount; i++) {
+			final int slot = get(i);
+			if (slot == 0) return -1;
+			final long k = storedKey(i, slot);
+			if (k >= key) return k == key ? i : -1;
+		}
+		return -1;
+	}
+
+	private void allocate() {
+		slotCount = capacity() + MAX_DISTANCE + 1;
+		words = new long[(int) (((long) slotCount * slotBits + Long.SIZE - 1) >>> 6)];
+		size = 0;
+		maxSize = (int) (capacity() * MAX_LOAD);
+	}
+
+	private void setRemainderBits(int remainderBits) {
+		this.remainderBits = remainderBits;
+		remainderMask = (1 << remainderBits) - 1;
+		slotBits = remainderBits + REMAINDER_SHIFT;
+		slotMask = (1L << slotBits) - 1;
+	}
+
+	private int get(int i) {
+		final long bit = (long) i * slotBits;
+		final int index = (int) (bit >>> 6);
+		final int shift = (int) bit & (Long.SIZE - 1);
+		long result = words[index] >>> shift;
+		if (shift + slotBits > Long.SIZE) result |= words[index + 1] << (Long.SIZE - shift);
+		return (int) (result & slotMask);
+	}
+
+	private void set(int i, int slot) {
+		final long bit = (long) i * slotBits;
+		final int index = (int) (bit >>> 6);
+		final int shift = (int) bit & (Long.SIZE - 1);
+		final long value = slot & slotMask;
+		words[index] = (words[index] & ~(slotMask << shift)) | (value << shift);
+		if (shift + slotBits > Long.SIZE) {
+			final int rest = Long.SIZE - shift;
+			words[index + 1] = (words[index + 1] & ~(slotMask >>> rest)) | (value >>> rest);
+		}
+	}
+
+	private int home(long e) {
+		return (int) (e >>> -quotientBits);
+	}
+
+	private int remainder(long e) {
+		return (int) (e >>> (Long.SIZE - remainderBits - quotientBits)) & remainderMask;
+	}
+
+	/**
+	 * Returns the key as the topmost bits of a hash, which doesn't depend on the number of quotient
+	 * bits, unlike the key. Distinct keys give distinct fingerprints.
+	 */
+	private long fingerprint(long key) {
+		return key << (Long.SIZE - remainderBits - quotientBits);
+	}
+
+	private long key(int home, int remainder) {
+		return ((long) home << remainderBits) | remainder;
+	}
+
+	/** Returns the quotient and the remainder of the occupied slot. */
+	private long key(int i) {
+		return storedKey(i, get(i));
+	}
+
+	private long storedKey(int i, int slot) {
+		return key(i - (slot & MAX_DISTANCE), slot >>> REMAINDER_SHIFT);
+	}
+
+	private int nextOccupied(int i) {
+		while (i < slotCount && get(i) == 0) ++i;
+		return i;
+	}
+
+	private static int slot(int remainder, int count, int distance) {
+		return (remainder << REMAINDER_SHIFT) | (count << COUNT_SHIFT) | distance;
+	}
+
+	private static int count(int slot) {
+		return (slot >>> COUNT_SHIFT) & MAX_COUNT;
+	}
+
+	private static int withCount(int slot, int count) {
+		return (slot & ~(MAX_COUNT << COUNT_SHIFT)) | (count << COUNT_SHIFT);
+	}
+}
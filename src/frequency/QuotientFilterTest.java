@@ -0,0 +1,135 @@
+package frequency;
+
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class QuotientFilterTest extends TestCase {
+	private static final int CAPACITY = 1 << 16;
+
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testGrowth() {
+		final QuotientFilter filter = new QuotientFilter(CAPACITY / 16);
+		final long[] keys = new long[CAPACITY];
+		int collisions = 0;
+		for (int i = 0; i < CAPACITY; i++) {
+			keys[i] = random.nextLong();
+			if (!filter.put(keys[i])) ++collisions;
+		}
+		// Four doublings, each costing a remainder bit.
+		assertEquals(QuotientFilter.MAX_REMAINDER_BITS - 4, filter.remainderBits());
+		// The 29 bits of the fingerprints give a few collisions.
+		assertTrue(String.valueOf(collisions), collisions < 16);
+		assertEquals(CAPACITY - collisions, filter.size());
+		int wrong = 0;
+		for (final long key : keys) {
+			assertTrue(filter.frequency(key) >= 1);
+			if (filter.frequency(key) != 1) ++wrong;
+		}
+		assertTrue(wrong <= 2 * collisions);
+
+		final QuotientFilter presized = new QuotientFilter(CAPACITY);
+		for (final long key : keys) presized.put(key);
+		assertEquals(presized.capacity(), filter.capacity());
+		int falsePositives = 0;
+		for (int i = 0; i < CAPACITY; i++) {
+			final long key = random.nextLong();
+			if (filter.mightContain(key)) ++falsePositives;
+			// The grown filter knows fewer bits of every fingerprint.
+			if (presized.mightContain(key)) assertTrue(filter.mightContain(key));
+		}
+		assertTrue(String.valueOf(falsePositives), falsePositives < CAPACITY * 0x1p-11);
+	}
+
+	public void testCounts() {
+		final QuotientFilter filter = new QuotientFilter(CAPACITY);
+		final long[] keys = new long[CAPACITY];
+		for (int i = 0; i < CAPACITY; i++) {
+			keys[i] = random.nextLong();
+			filter.increment(keys[i], i % 20);
+		}
+		// Only keys with colliding fingerprints may be overestimated.
+		int wrong = 0;
+		for (int i = 0; i < CAPACITY; i++) {
+			assertTrue(filter.frequency(keys[i]) >= i % 20);
+			if (filter.frequency(keys[i]) != i % 20) ++wrong;
+		}
+		assertTrue(String.valueOf(wrong), wrong < 8);
+		filter.increment(keys[1], 1000);
+		assertEquals(QuotientFilter.MAX_COUNT, filter.frequency(keys[1]));
+
+		final int[] before = new int[CAPACITY];
+		for (int i = 0; i < CAPACITY; i++) before[i] = filter.frequency(keys[i]);
+		filter.halve();
+		for (int i = 0; i < CAPACITY; i++) assertEquals(before[i] / 2, filter.frequency(keys[i]));
+		filter.clear();
+		assertEquals(0, filter.size());
+		for (final long key : keys) assertFalse(filter.mightContain(key));
+	}
+
+	public void testMerge() {
+		final QuotientFilter a = new QuotientFilter(CAPACITY);
+		final QuotientFilter b = new QuotientFilter(CAPACITY);
+		final QuotientFilter expected = new QuotientFilter(CAPACITY);
+		final long[] keys = new long[CAPACITY];
+		for (int i = 0; i < CAPACITY; i++) {
+			keys[i] = random.nextLong();
+			// Some keys get put into both.
+			if (i % 3 != 0) a.increment(keys[i], i % 7 + 1);
+			if (i % 3 != 1) b.increment(keys[i], i % 5 + 1);
+			if (i % 3 != 0) expected.increment(keys[i], i % 7 + 1);
+			if (i % 3 != 1) expected.increment(keys[i], i % 5 + 1);
+		}
+		a.merge(b);
+		assertEquals(expected.size(), a.size());
+		for (final long key : keys) assertEquals(expected.frequency(key), a.frequency(key));
+
+		// Merging two full filters needs a doubling.
+		final QuotientFilter full = new QuotientFilter(CAPACITY);
+		for (int i = 0; i < CAPACITY; i++) full.put(random.nextLong());
+		final int capacity = a.capacity();
+		final int size = a.size();
+		a.merge(full);
+		assertEquals(2 * capacity, a.capacity());
+		assertTrue(a.size() > size + CAPACITY - 8);
+		for (final long key : keys) assertTrue(a.frequency(key) >= expected.frequency(key));
+	}
+
+	public void testAgingWhenFull() {
+		final QuotientFilter filter = new QuotientFilter(CAPACITY, QuotientFilter.MIN_REMAINDER_BITS);
+		final long frequent = random.nextLong();
+		filter.increment(frequent, 100);
+		for (int i = 0; i < 8 * CAPACITY; i++) filter.put(random.nextLong());
+		// Unable to grow, it halves instead and the frequent key survives.
+		assertEquals(QuotientFilter.MIN_REMAINDER_BITS, filter.remainderBits());
+		assertTrue(filter.size() <= 0.8 * filter.capacity());
+		assertTrue(filter.mightContain(frequent));
+	}
+
+	public void testKeepsTheKeyJustPut() {
+		final QuotientFilter filter = new QuotientFilter(CAPACITY, QuotientFilter.MIN_REMAINDER_BITS);
+		for (int i = 0; i < 8 * CAPACITY; i++) {
+			final long key = random.nextLong();
+			filter.put(key);
+			// Any halving needed for room happens before the insert.
+			assertTrue(filter.mightContain(key));
+		}
+	}
+
+	public void testPacking() {
+		for (int remainderBits = QuotientFilter.MIN_REMAINDER_BITS; remainderBits <= QuotientFilter.MAX_REMAINDER_BITS; remainderBits++) {
+			final QuotientFilter filter = new QuotientFilter(CAPACITY, remainderBits);
+			// The remainder plus the count and the distance of eight bits each.
+			assertEquals(remainderBits + 16, filter.slotBits());
+			final long[] keys = new long[CAPACITY / 2];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextLong();
+				filter.increment(keys[i], i % 300 + 1);
+			}
+			for (int i = 0; i < keys.length; i++) {
+				assertTrue(filter.frequency(keys[i]) >= Math.min(i % 300 + 1, QuotientFilter.MAX_COUNT));
+			}
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package frequency;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Passes the increments to the delegate and records them by a {@link TraceRecorder}. Placed just
+ * below a {@link SpreadingFrequency}, it records exactly what the sketch sees.
+ */
+@RequiredArgsConstructor public class RecordingFrequency implements Frequency {
+	private final Frequency delegate;
+	private final TraceRecorder recorder;
+
+	@Override public void increment(long e, int count) {
+		recorder.record(e, count);
+		delegate.increment(e, count);
+	}
+
+	@Override public int frequencyThenIncrement(long e, int count) {
+		recorder.record(e, count);
+		return delegate.frequencyThenIncrement(e, count);
+	}
+
+	@Override public int frequency(long e) {
+		return delegate.frequency(e);
+	}
+}
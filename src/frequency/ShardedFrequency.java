@@ -0,0 +1,75 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A count-min sketch split into shards, so that concurrent increments by different threads don't
+ * fight for the same cache lines. Every thread increments the shard selected by its id, guarded
+ * by the shard's monitor, which is uncontended unless there are more threads than shards.
+ *
+ * <p>A query sums the estimates of all shards without locking. As every shard sees a disjoint
+ * part of the events and overestimates its part only, the sum never underestimates. The reads
+ * race with the increments, so they may miss the latest ones, which is harmless for an estimate.
+ */
+@ThreadSafe
+public class ShardedFrequency implements Frequency {
+	/** Keeps the monitors of two shards out of the same cache line. */
+	@SuppressWarnings("unused")
+	private static class ShardPadding {
+		long p01, p02, p03, p04, p05, p06, p07;
+	}
+
+	private static class ShardSketch extends ShardPadding {
+		ShardSketch(MyCountMinFrequency sketch) {
+			this.sketch = sketch;
+		}
+
+		final MyCountMinFrequency sketch;
+	}
+
+	/**
+	 * A padded holder used as the monitor of its sketch. The sketches themselves are apart as
+	 * each of them got allocated together with its table.
+	 */
+	@SuppressWarnings("unused")
+	private static final class Shard extends ShardSketch {
+		Shard(MyCountMinFrequency sketch) {
+			super(sketch);
+		}
+
+		long q01, q02, q03, q04, q05, q06, q07;
+	}
+
+	private final Shard[] shards;
+	private final int mask;
+
+	/**
+	 * @param shards the sub-sketches, their number must be a power of two
+	 */
+	public ShardedFrequency(MyCountMinFrequency... shards) {
+		checkArgument(Integer.bitCount(shards.length) == 1);
+		this.shards = new Shard[shards.length];
+		for (int i = 0; i < shards.length; i++) this.shards[i] = new Shard(shards[i]);
+		mask = shards.length - 1;
+	}
+
+	@Override public void increment(long e, int count) {
+		final Shard shard = shards[shardIndex()];
+		synchronized (shard) {
+			shard.sketch.increment(e, count);
+		}
+	}
+
+	@Override public int frequency(long e) {
+		int result = 0;
+		for (final Shard shard : shards) result += shard.sketch.frequency(e);
+		return result;
+	}
+
+	private int shardIndex() {
+		// Thread ids are mostly consecutive, so that consecutive threads get distinct shards.
+		return (int) Thread.currentThread().getId() & mask;
+	}
+}
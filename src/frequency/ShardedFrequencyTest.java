@@ -0,0 +1,145 @@
+package frequency;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import junit.framework.TestCase;
+
+public class ShardedFrequencyTest extends TestCase {
+	private static final int KEYS = 1 << 12;
+	private static final int INCREMENTS_PER_THREAD = 1 << 18;
+
+	public void testBounds() throws InterruptedException {
+		final MyFrequencyFactory factory = newFactory(8);
+		// Wide counters, so that no shard saturates and the exact counts are comparable.
+		factory.setCmCounterBits(16);
+		final Frequency frequency = factory.newShardedFrequency();
+		final long[] exact = new long[KEYS];
+		run(frequency, 8, exact);
+		long error = 0;
+		for (int key = 0; key < KEYS; key++) {
+			final int estimate = frequency.frequency(key);
+			assertTrue(key + " " + estimate + " " + exact[key], estimate >= exact[key]);
+			error += estimate - exact[key];
+		}
+		// The shards are big enough for the keys to rarely collide.
+		assertTrue(String.valueOf(error), error < 0.01 * 8 * INCREMENTS_PER_THREAD);
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		System.out.println("threads\tsharded\tshared\tlocked\t(ns/op)");
+		for (final int threads : new int[] {4, 16, 64}) {
+			final Frequency sharded = newFactory(threads).newShardedFrequency();
+			final Frequency shared = new ConcurrentCountMin4(newFactory(threads).getCmExpectedInsertions());
+			final Frequency single = newFactory(threads).newCountMin();
+			final Frequency locked = new Frequency() {
+				@Override public synchronized int frequency(long e) {
+					return single.frequency(e);
+				}
+
+				@Override public synchronized void increment(long e, int count) {
+					single.increment(e, count);
+				}
+			};
+			final long total = (long) threads * INCREMENTS_PER_THREAD;
+			System.out.format("%d\t%5.1f\t%5.1f\t%5.1f\n", threads, (double) run(sharded, threads, null) / total,
+					(double) run(shared, threads, null) / total, (double) run(locked, threads, null) / total);
+		}
+	}
+
+	/**
+	 * A single lock-free 4-bit count-min sketch shared by all threads, which increments its counters
+	 * by compare-and-swap. It serves as the baseline only, so it neither ages nor spreads.
+	 */
+	private static final class ConcurrentCountMin4 implements Frequency {
+		ConcurrentCountMin4(long counters) {
+			table = new AtomicLongArray(Integer.highestOneBit((int) counters / 4 * 2 - 1));
+			tableShift = Long.numberOfLeadingZeros(table.length() - 1);
+		}
+
+		@Override public void increment(long e, int count) {
+			e = MyBloomFilter.respread(e);
+			for (int i = 0; i < 4; i++) {
+				incrementAt((int) (e >>> tableShift), (int) e & 60, count);
+				e = Long.rotateLeft(e, 16);
+			}
+		}
+
+		@Override public int frequency(long e) {
+			e = MyBloomFilter.respread(e);
+			int result = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				result = Math.min(result, (int) (table.get((int) (e >>> tableShift)) >>> ((int) e & 60)) & 15);
+				e = Long.rotateLeft(e, 16);
+			}
+			return result;
+		}
+
+		private void incrementAt(int index, int shift, int count) {
+			for (;;) {
+				final long old = table.get(index);
+				final long counter = (old >>> shift) & 15;
+				if (counter == 15) return;
+				final long neu = old + (Math.min(counter + count, 15) - counter << shift);
+				if (table.compareAndSet(index, old, neu)) return;
+			}
+		}
+
+		private final AtomicLongArray table;
+		private final int tableShift;
+	}
+
+	/**
+	 * Returns the elapsed time.
+	 *
+	 * @param exact the array where to add the exact counts of the keys, or {@code null}
+	 */
+	private static long run(final Frequency frequency, int threads, final long[] exact) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong sum = new AtomicLong();
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			new Thread() {
+				@Override public void run() {
+					final SplittableRandom random = new SplittableRandom(seed);
+					final int[] counts = exact == null ? null : new int[KEYS];
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					long s = 0;
+					for (int i = 0; i < INCREMENTS_PER_THREAD; i++) {
+						final int key = random.nextInt(KEYS);
+						frequency.increment(key, 1);
+						if (counts != null) ++counts[key];
+						if ((i & 15) == 0) s += frequency.frequency(random.nextInt(KEYS));
+					}
+					sum.addAndGet(s);
+					if (counts != null) {
+						synchronized (exact) {
+							for (int key = 0; key < KEYS; key++) exact[key] += counts[key];
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		final long startNanos = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - startNanos;
+	}
+
+	private static MyFrequencyFactory newFactory(int shards) {
+		final MyFrequencyFactory result = new MyFrequencyFactory();
+		result.setShards(shards);
+		result.setCmExpectedInsertions(1 << 16);
+		result.setCmCountersMultiplier(1);
+		result.setCmOccupancyRatio(0.99);
+		return result;
+	}
+}
@@ -0,0 +1,119 @@
+package frequency;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Grows the Bloom filter and the count-min sketch of a chain according to the number of distinct
+ * elements seen, so that their memory follows the real working set instead of a worst case guess.
+ * The number gets estimated by a {@link HyperLogLog} sketch, which is consulted periodically.
+ *
+ * <p>The estimator ages with the count-min sketch: There are two of them, rotated whenever the
+ * sketch completes a sweep of halving or gets cleared by a full reset, and the larger estimate
+ * counts. So the estimate covers the elements seen in the current and in the previous aging period,
+ * i.e., the working set, instead of all elements seen since the creation. As growing clears the
+ * sketch and so delays its aging, a period ends after {@value #PERIOD_FACTOR} times as many
+ * increments as the sketch is sized for at the latest, which keeps churn from ratcheting the
+ * size up.
+ *
+ * <p>Growing forgets the content of the grown structure, which is acceptable as it happens only
+ * a logarithmic number of times.
+ */
+@NotThreadSafe
+public class SizingFrequency implements Frequency {
+	/** The number of increments between two consultations of the estimator. */
+	private static final int CHECK_INTERVAL = 1 << 12;
+	/** The maximum length of an aging period of the estimator relative to the expected insertions. */
+	private static final int PERIOD_FACTOR = 2;
+
+	private final Frequency delegate;
+	private final MyBloomFilter filter;
+	private final MyCountMinFrequency countMin;
+	private final double countersMultiplier;
+	private final long maxExpectedInsertions;
+
+	/** The estimator of the current aging period. */
+	private HyperLogLog estimator;
+	private HyperLogLog previousEstimator;
+	private long bloomExpectedInsertions;
+	private long cmExpectedInsertions;
+	private int countdown = CHECK_INTERVAL;
+	/** The values of {@link MyCountMinFrequency#halvedWords()} and {@link MyCountMinFrequency#clears()} when the period started. */
+	private long periodHalvedWords;
+	private long periodClears;
+	private long periodIncrements;
+
+	/**
+	 * @param delegate the chain containing the filter and the count-min sketch
+	 */
+	public SizingFrequency(Frequency delegate, MyBloomFilter filter, MyCountMinFrequency countMin,
+			MyFrequencyFactory factory) {
+		this.delegate = delegate;
+		this.filter = filter;
+		this.countMin = countMin;
+		estimator = new HyperLogLog(factory.getHllPrecision());
+		previousEstimator = new HyperLogLog(factory.getHllPrecision());
+		periodHalvedWords = countMin.halvedWords();
+		periodClears = countMin.clears();
+		countersMultiplier = factory.getCmCountersMultiplier();
+		maxExpectedInsertions = factory.getMaxExpectedInsertions();
+		bloomExpectedInsertions = factory.getBloomExpectedInsertions();
+		cmExpectedInsertions = factory.getCmExpectedInsertions();
+	}
+
+	@Override public void increment(long e, int count) {
+		track(e);
+		delegate.increment(e, count);
+	}
+
+	@Override public int frequency(long e) {
+		return delegate.frequency(e);
+	}
+
+	@Override public int frequencyThenIncrement(long e, int count) {
+		if (count > 0) track(e);
+		return delegate.frequencyThenIncrement(e, count);
+	}
+
+	private void track(long e) {
+		estimator.add(e);
+		if (--countdown == 0) {
+			countdown = CHECK_INTERVAL;
+			rotateIfAged();
+			grow(estimatedDistinct());
+		}
+	}
+
+	/** Returns the estimated number of distinct elements seen in the current and the previous aging period. */
+	public long estimatedDistinct() {
+		return Math.max(estimator.estimate(), previousEstimator.estimate());
+	}
+
+	private void rotateIfAged() {
+		periodIncrements += CHECK_INTERVAL;
+		if (countMin.clears() == periodClears && countMin.halvedWords() - periodHalvedWords < countMin.tableLength()
+				&& periodIncrements < PERIOD_FACTOR * cmExpectedInsertions) return;
+		final HyperLogLog oldest = previousEstimator;
+		previousEstimator = estimator;
+		estimator = oldest;
+		estimator.clear();
+		periodHalvedWords = countMin.halvedWords();
+		periodClears = countMin.clears();
+		periodIncrements = 0;
+	}
+
+	private void grow(long distinct) {
+		// Doubling leaves enough room for not having to grow again soon.
+		final long target = Math.min(2 * distinct, maxExpectedInsertions);
+		if (distinct > bloomExpectedInsertions && target > bloomExpectedInsertions) {
+			bloomExpectedInsertions = target;
+			filter.ensureCapacity(target);
+		}
+		if (distinct > cmExpectedInsertions && target > cmExpectedInsertions) {
+			cmExpectedInsertions = target;
+			countMin.ensureCapacity((long) (countersMultiplier * target));
+			// Growing clears the sketch, but that's no aging.
+			periodHalvedWords = countMin.halvedWords();
+			periodClears = countMin.clears();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A {@link Frequency} with a single writer and any number of readers, which see a slightly stale
+ * state of the count-min sketch without taking any locks.
+ *
+ * <p>Only one thread should call {@link #increment}, which updates the sketch and periodically
+ * publishes its copy via a volatile write. Any thread may call {@link #frequency}, which reads the
+ * latest published copy. There are two preallocated copies used alternately, so that publishing
+ * copies the table without allocating. Before overwriting the copy not published, the writer waits
+ * for the readers still using it, which every reader registers with by a counter of the copy. So a
+ * reader never sees a copy being overwritten.
+ *
+ * <p>An increment gets published once {@code maxPendingIncrements} increments are pending or after
+ * it got older than {@code maxStalenessNanos}, which gets checked every {@value #CHECK_INTERVAL}
+ * increments, as reading the clock costs more than an increment. Without a scheduler, the
+ * increments followed by a lull stay unpublished until the next one. With a scheduler, the pending
+ * increments get published every half of {@code maxStalenessNanos}, so that no increment stays
+ * unpublished for longer than that. As the scheduler competes with the writer for the sketch, the
+ * writer takes an uncontended lock.
+ */
+@ThreadSafe
+public class SnapshotFrequency implements Frequency, AutoCloseable {
+	/** How many increments pass between two clock reads, must be a power of two. */
+	private static final int CHECK_INTERVAL = 1 << 6;
+
+	/** A copy of the table and the number of readers using it. */
+	private static final class Generation {
+		Generation(MyCountMinFrequency.Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		MyCountMinFrequency.Snapshot snapshot;
+		final AtomicInteger readers = new AtomicInteger();
+	}
+
+	private final MyCountMinFrequency writer;
+	private final int maxPendingIncrements;
+	private final long maxStalenessNanos;
+	@Nullable private final ScheduledFuture<?> scheduledPublishing;
+
+	private volatile Generation published;
+	/** The generation not published, which gets overwritten on the next publishing. */
+	private Generation spare;
+	private int pendingIncrements;
+	/** The time of the oldest pending increment. */
+	private long firstPendingNanos;
+
+	/**
+	 * @param maxPendingIncrements the number of increments after which a new copy gets published
+	 * @param maxStalenessNanos the age after which a new copy gets published on the next increment
+	 */
+	public SnapshotFrequency(MyCountMinFrequency writer, int maxPendingIncrements, long maxStalenessNanos) {
+		this(writer, maxPendingIncrements, maxStalenessNanos, null);
+	}
+
+	/**
+	 * @param maxPendingIncrements the number of increments after which a new copy gets published
+	 * @param maxStalenessNanos the maximum age of an unpublished increment
+	 * @param scheduler the executor publishing the pending increments when there are no further ones,
+	 *     or {@code null}
+	 */
+	public SnapshotFrequency(MyCountMinFrequency writer, int maxPendingIncrements, long maxStalenessNanos,
+			@Nullable ScheduledExecutorService scheduler) {
+		checkArgument(maxPendingIncrements > 0);
+		checkArgument(maxStalenessNanos >= 0);
+		checkArgument(scheduler == null || maxStalenessNanos > 1);
+		this.writer = writer;
+		this.maxPendingIncrements = maxPendingIncrements;
+		this.maxStalenessNanos = maxStalenessNanos;
+		spare = new Generation(writer.snapshot(null));
+		published = new Generation(writer.snapshot(null));
+		scheduledPublishing = scheduler == null ? null : scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override public void run() {
+				publishPending();
+			}
+		}, maxStalenessNanos / 2, maxStalenessNanos / 2, TimeUnit.NANOSECONDS);
+	}
+
+	/** Should be called by the writer thread only. */
+	@Override public synchronized void increment(long e, int count) {
+		writer.increment(e, count);
+		if (pendingIncrements++ == 0) {
+			firstPendingNanos = System.nanoTime();
+		} else if ((pendingIncrements & (CHECK_INTERVAL - 1)) == 0
+				&& System.nanoTime() - firstPendingNanos >= maxStalenessNanos) {
+			publish();
+			return;
+		}
+		if (pendingIncrements >= maxPendingIncrements) publish();
+	}
+
+	/** May be called by any thread, returns the estimate according to the last published copy. */
+	@Override public int frequency(long e) {
+		for (;;) {
+			final Generation generation = published;
+			generation.readers.incrementAndGet();
+			try {
+				// Unless still published after registering, the writer may be overwriting it.
+				if (generation == published) return generation.snapshot.frequency(e);
+			} finally {
+				generation.readers.decrementAndGet();
+			}
+		}
+	}
+
+	/** Publishes the current state. */
+	public synchronized void publish() {
+		final Generation next = spare;
+		while (next.readers.get() != 0) Thread.yield();
+		next.snapshot = writer.snapshot(next.snapshot);
+		spare = published;
+		published = next;
+		pendingIncrements = 0;
+	}
+
+	private synchronized void publishPending() {
+		if (pendingIncrements > 0) publish();
+	}
+
+	/** Stops the scheduled publishing, if any. */
+	@Override public void close() {
+		if (scheduledPublishing != null) scheduledPublishing.cancel(false);
+	}
+}
@@ -0,0 +1,93 @@
+package frequency;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class SnapshotFrequencyTest extends TestCase {
+	private static final long MAX_STALENESS_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testPublishedOnNextIncrementWhenStale() throws InterruptedException {
+		final SnapshotFrequency frequency = new SnapshotFrequency(newCountMin(), 1 << 20, MAX_STALENESS_NANOS);
+		final long key = random.nextLong();
+		frequency.increment(key, 1);
+		frequency.increment(key, 1);
+		assertEquals(0, frequency.frequency(key));
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(MAX_STALENESS_NANOS) + 1);
+		// The clock gets checked every 64 increments.
+		for (int i = 0; i < 64; i++) frequency.increment(random.nextLong(), 1);
+		assertEquals(2, frequency.frequency(key));
+	}
+
+	public void testPublishedAfterLull() throws InterruptedException {
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try (SnapshotFrequency frequency =
+				new SnapshotFrequency(newCountMin(), 1 << 20, MAX_STALENESS_NANOS, scheduler)) {
+			final long key = random.nextLong();
+			final long start = System.nanoTime();
+			for (int i = 0; i < 3; i++) frequency.increment(key, 1);
+			while (frequency.frequency(key) < 3) Thread.sleep(1);
+			final long nanos = System.nanoTime() - start;
+			// A generous tolerance for the scheduling on a loaded machine.
+			assertTrue(String.valueOf(nanos), nanos < 10 * MAX_STALENESS_NANOS);
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	public void testConcurrentReads() throws InterruptedException {
+		// Publishing often makes readers overlap with publishing.
+		final SnapshotFrequency frequency = new SnapshotFrequency(newCountMin(), 16, MAX_STALENESS_NANOS);
+		final long first = random.nextLong();
+		final long second = random.nextLong();
+		final int steps = 50000;
+		final AtomicReference<String> failure = new AtomicReference<>();
+		final Thread[] readers = new Thread[2];
+		final AtomicBoolean done = new AtomicBoolean();
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(new Runnable() {
+				@Override public void run() {
+					int last = 0;
+					while (!done.get()) {
+						// The first key gets incremented first, so that any consistent copy counts it at least as often.
+						final int secondCount = frequency.frequency(second);
+						final int firstCount = frequency.frequency(first);
+						if (firstCount < secondCount || firstCount < last) {
+							failure.compareAndSet(null, firstCount + " " + secondCount + " " + last);
+						}
+						last = firstCount;
+					}
+				}
+			});
+			readers[i].start();
+		}
+		for (int i = 0; i < steps; i++) {
+			frequency.increment(first, 1);
+			frequency.increment(second, 1);
+			if ((i & 1023) == 0) Thread.yield();
+		}
+		frequency.publish();
+		done.set(true);
+		for (final Thread reader : readers) reader.join();
+		assertNull(failure.get(), failure.get());
+		assertEquals(steps, frequency.frequency(first));
+		assertEquals(steps, frequency.frequency(second));
+	}
+
+	private static MyCountMinFrequency newCountMin() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setCmExpectedInsertions(1 << 12);
+		factory.setCmCountersMultiplier(1);
+		// No aging, so that the counts only grow.
+		factory.setCmOccupancyRatio(0.999);
+		factory.setCmCounterBits(16);
+		return factory.newCountMin();
+	}
+}
@@ -18,7 +18,18 @@ public class SpreadingFrequency implements Frequency {
 		return delegate.frequency(spread(e));
 	}
 
+	@Override public int frequencyThenIncrement(long e, int count) {
+		return delegate.frequencyThenIncrement(spread(e), count);
+	}
+
 	private long spread(long e) {
+		return spread(e, randomSeed);
+	}
+
+	/**
+	 * @param randomSeed an odd number
+	 */
+	static long spread(long e, long randomSeed) {
 		e *= 0xc3a5c85c97cb3127L;
 		e = Long.reverseBytes(e); // A single instruction on amd64.
 		e *= randomSeed;
@@ -0,0 +1,163 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A compact encoding of the changes of a table of longs since its previously shipped version,
+ * meant for synchronizing Bloom filters and count-min sketches between nodes.
+ *
+ * <p>The delta consists of the XOR of both versions, which is mostly zero. It's encoded as runs,
+ * each given by the varint-encoded number of unchanged words to skip and the number of changed
+ * words following, terminated by a run of zero changed words. A changed word is encoded as the
+ * number of flipped bits followed by their positions, unless there are more than seven of them,
+ * when all its eight bytes follow. A Bloom filter word usually gets a few bits set between two
+ * synchronizations and a nibble counter usually flips a bit or two per increment, so that most
+ * changed words take two to four bytes.
+ *
+ * <p>Applying decodes the delta twice, first only validating it, so that a corrupted delta leaves
+ * the table untouched, and then XORing the words straight into the live table without any
+ * intermediate copy.
+ */
+public final class TableDelta {
+	private static final int MAGIC = 0x7461_6231;
+	private static final int RAW = 8;
+
+	private TableDelta() {
+	}
+
+	/**
+	 * Keeps the previously shipped version of a table in order to compute deltas against it.
+	 *
+	 * <p>This copy doubles the memory on the sending side. Tracking the touched words in a bitset
+	 * instead would add a store to every put and increment of the tables, and would still have to
+	 * ship the touched words whole, as the receiver's version is unknown. Moreover, a sweep of the
+	 * aging touches every word, while only its few halved nonzero counters differ from the copy.
+	 */
+	@NotThreadSafe
+	public static final class Encoder {
+		private long[] previous = new long[0];
+
+		/**
+		 * Writes the delta between the previously shipped version and the current table and
+		 * remembers the current table as the shipped one. When the table length has changed, the
+		 * delta is against an empty table, so the receiver must resize and clear its table first.
+		 *
+		 * @param out a buffer with at least {@link #maxEncodedSize(int)} bytes remaining
+		 * @throws IllegalArgumentException if the buffer is too small, before anything gets written
+		 */
+		public void encode(long[] current, ByteBuffer out) {
+			// Checked up front, as the shipped version gets updated while writing.
+			checkArgument(out.remaining() >= maxEncodedSize(current.length), "Buffer too small.");
+			if (previous.length != current.length) previous = new long[current.length];
+			out.putInt(MAGIC);
+			out.putInt(current.length);
+			int i = 0;
+			for (;;) {
+				final int start = i;
+				while (i < current.length && current[i] == previous[i]) ++i;
+				putVarint(out, i - start);
+				final int changedStart = i;
+				while (i < current.length && current[i] != previous[i]) ++i;
+				putVarint(out, i - changedStart);
+				if (i == changedStart) break;
+				for (int j = changedStart; j < i; j++) {
+					putWord(out, current[j] ^ previous[j]);
+					previous[j] = current[j];
+				}
+			}
+		}
+
+		/** Forgets the shipped version, so that the next delta contains the whole table. */
+		public void reset() {
+			Arrays.fill(previous, 0L);
+		}
+	}
+
+	/** Returns an upper bound on the size of an encoded delta of a table of the given length. */
+	public static long maxEncodedSize(int words) {
+		// Alternating a single unchanged and a single changed word is the worst case.
+		return 32 + 11L * words;
+	}
+
+	/**
+	 * Applies the delta starting at the buffer's position to the table and advances the position
+	 * past it. When the delta is malformed, neither the table nor the position change.
+	 *
+	 * @throws IllegalArgumentException if the delta is malformed or for a table of a different length
+	 */
+	public static void apply(long[] table, ByteBuffer in) {
+		try {
+			decode(null, table.length, in.duplicate());
+		} catch (final BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated delta.", e);
+		}
+		decode(table, table.length, in);
+	}
+
+	/** Decodes the delta, XORing it into the table unless it's {@code null}. */
+	private static void decode(@Nullable long[] table, int length, ByteBuffer in) {
+		checkArgument(in.getInt() == MAGIC, "Not a table delta.");
+		checkArgument(in.getInt() == length, "Table length mismatch.");
+		int i = 0;
+		for (;;) {
+			i += getVarint(in);
+			final int changed = getVarint(in);
+			if (changed == 0) break;
+			checkArgument(i >= 0 && changed <= length - i, "Corrupted delta.");
+			for (final int end = i + changed; i < end; i++) {
+				final long word = getWord(in);
+				if (table != null) table[i] ^= word;
+			}
+		}
+		checkArgument(i >= 0 && i <= length, "Corrupted delta.");
+	}
+
+	private static void putWord(ByteBuffer out, long x) {
+		final int bits = Long.bitCount(x);
+		if (bits >= RAW) {
+			out.put((byte) RAW);
+			out.putLong(x);
+			return;
+		}
+		out.put((byte) bits);
+		for (; x != 0; x &= x - 1) out.put((byte) Long.numberOfTrailingZeros(x));
+	}
+
+	private static long getWord(ByteBuffer in) {
+		final int bits = in.get();
+		if (bits == RAW) return in.getLong();
+		checkArgument(0 < bits && bits < RAW, "Corrupted delta.");
+		long result = 0;
+		for (int k = 0; k < bits; k++) {
+			final int bit = in.get();
+			checkArgument(0 <= bit && bit < Long.SIZE, "Corrupted delta.");
+			result |= 1L << bit;
+		}
+		return result;
+	}
+
+	private static void putVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) (value | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private static int getVarint(ByteBuffer in) {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final byte b = in.get();
+			result |= (b & 0x7F) << shift;
+			if (b >= 0) return result;
+		}
+		throw new IllegalArgumentException("Corrupted delta.");
+	}
+}
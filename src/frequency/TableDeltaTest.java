@@ -0,0 +1,108 @@
+package frequency;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class TableDeltaTest extends TestCase {
+	private final SplittableRandom random = new SplittableRandom(9599);
+
+	public void testRoundTrip() {
+		final long[] source = new long[1 << 12];
+		final long[] replica = new long[source.length];
+		final TableDelta.Encoder encoder = new TableDelta.Encoder();
+		final ByteBuffer buffer = ByteBuffer.allocateDirect((int) TableDelta.maxEncodedSize(source.length));
+		for (int round = 0; round < 20; round++) {
+			// Sparse bit flips, a run of changed words and a few fully random words.
+			for (int n = 0; n < 100; n++) source[random.nextInt(source.length)] ^= 1L << random.nextInt(64);
+			final int start = random.nextInt(source.length - 10);
+			for (int i = start; i < start + 10; i++) source[i] += 1;
+			source[random.nextInt(source.length)] = random.nextLong();
+
+			buffer.clear();
+			encoder.encode(source, buffer);
+			buffer.flip();
+			TableDelta.apply(replica, buffer);
+			assertFalse(buffer.hasRemaining());
+			assertTrue(Arrays.equals(source, replica));
+		}
+	}
+
+	public void testCorruptedDeltaLeavesTableUntouched() {
+		final long[] source = new long[1 << 10];
+		final TableDelta.Encoder encoder = new TableDelta.Encoder();
+		final ByteBuffer buffer = ByteBuffer.allocate((int) TableDelta.maxEncodedSize(source.length));
+		for (int n = 0; n < 100; n++) source[random.nextInt(source.length)] ^= 1L << random.nextInt(64);
+		encoder.encode(source, buffer);
+		buffer.flip();
+		final byte[] encoded = new byte[buffer.remaining()];
+		buffer.get(encoded);
+
+		for (int round = 0; round < 200; round++) {
+			// Either damage a byte in the later half or cut the delta short.
+			final byte[] corrupted;
+			if ((round & 1) == 0) {
+				corrupted = encoded.clone();
+				corrupted[encoded.length / 2 + random.nextInt(encoded.length / 2)] ^= 1 << 7 | random.nextInt(1, 128);
+			} else {
+				corrupted = Arrays.copyOf(encoded, encoded.length / 2 + random.nextInt(encoded.length / 2));
+			}
+			final long[] replica = new long[source.length];
+			final ByteBuffer in = ByteBuffer.wrap(corrupted);
+			try {
+				TableDelta.apply(replica, in);
+				fail("Undetected corruption in round " + round);
+			} catch (final IllegalArgumentException e) {
+				assertTrue(Arrays.equals(new long[source.length], replica));
+				assertEquals(0, in.position());
+			}
+		}
+	}
+
+	public void testBufferTooSmall() {
+		final long[] source = new long[1 << 10];
+		source[17] = 1;
+		final long[] replica = new long[source.length];
+		final TableDelta.Encoder encoder = new TableDelta.Encoder();
+		try {
+			encoder.encode(source, ByteBuffer.allocate(64));
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// The failed call must not count as shipped.
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate((int) TableDelta.maxEncodedSize(source.length));
+		encoder.encode(source, buffer);
+		buffer.flip();
+		TableDelta.apply(replica, buffer);
+		assertTrue(Arrays.equals(source, replica));
+	}
+
+	public void testBloomFilterSync() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setBloomExpectedInsertions(1 << 20);
+		factory.setBloomOccupancyRatio(0.9);
+		final MyBloomFilter source = new MyBloomFilter(factory);
+		final MyBloomFilter replica = new MyBloomFilter(factory);
+		final TableDelta.Encoder encoder = new TableDelta.Encoder();
+		final ByteBuffer buffer = ByteBuffer.allocate((int) TableDelta.maxEncodedSize(source.tableLength()));
+
+		System.out.println("puts\tbytes\t(% of table)");
+		for (final int puts : new int[] {1000, 10000, 100000}) {
+			final long[] keys = new long[puts];
+			for (int i = 0; i < puts; i++) {
+				keys[i] = random.nextLong();
+				source.put(keys[i]);
+			}
+			buffer.clear();
+			source.encodeDelta(encoder, buffer);
+			buffer.flip();
+			System.out.format("%d\t%d\t(%5.2f%%)\n", puts, buffer.remaining(),
+					100.0 * buffer.remaining() / (8L * source.tableLength()));
+			replica.applyDelta(buffer);
+			for (final long key : keys) assertTrue(replica.mightContain(key));
+			assertEquals(source.estimatedSize(), replica.estimatedSize());
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Many small frequency sketches, one per tenant, carved out of a single arena. Every tenant gets a
+ * slab consisting of a doorkeeper Bloom filter followed by a 4-bit count-min sketch, which behave
+ * like a {@link MyBloomFilter} and a {@link MyCountMin4Frequency} chained by a {@link FilteredFrequency}
+ * and a {@link SpreadingFrequency}, including their full or partial resets and conservative
+ * updates. The options which don't fit a fixed slab layout, i.e., other counter widths, aging by
+ * time, coordinated aging, keyed spreading and auto-sizing, get rejected.
+ *
+ * <p>Compared to thousands of separate chains, this saves two arrays and five wrappers per tenant
+ * and lets the garbage collector see a single object. The word-level operations and the sizing
+ * are shared with the separate classes, which makes their tables the same size and their resets
+ * happen at the same occupancy. Creating a tenant takes O(1), destroying it clears its slab.
+ * Tenant ids get reused after destruction.
+ */
+@NotThreadSafe
+public final class TenantSketchStore {
+	private static final int COUNTER_BITS = 4;
+
+	private final long randomSeed;
+	private final double bloomOccupancyRatio;
+	private final double cmOccupancyRatio;
+	private final boolean bloomFullReset;
+	private final boolean cmFullReset;
+	private final boolean conservative;
+
+	private final int bloomWords;
+	private final int bloomProbedWords;
+	private final int bloomShift;
+	private final int cmWords;
+	private final int cmShift;
+	private final int cmShiftMask;
+	private final int slabWords;
+	private final long maxBloomOccupancy;
+	private final long maxCmOccupancy;
+
+	/** The tables of all tenants, the slab of tenant t starts at {@code t * slabWords}. */
+	private final long[] arena;
+	private final long[] bloomOccupancy;
+	private final int[] bloomCursor;
+	private final long[] cmOccupancy;
+	private final int[] cmCursor;
+	private final boolean[] live;
+
+	/** A stack of free tenant ids. */
+	private final int[] free;
+	private int freeCount;
+
+	/**
+	 * @param factory the source of the per-tenant sizing and reset parameters
+	 * @param maxTenants the maximum number of live tenants
+	 */
+	public TenantSketchStore(MyFrequencyFactory factory, @Nonnegative int maxTenants) {
+		checkArgument(maxTenants > 0);
+		randomSeed = factory.getRandomSeed() | 1;
+		bloomOccupancyRatio = factory.getBloomOccupancyRatio();
+		checkArgument(0 < bloomOccupancyRatio && bloomOccupancyRatio < 1);
+		cmOccupancyRatio = factory.getCmOccupancyRatio();
+		checkArgument(0 < cmOccupancyRatio && cmOccupancyRatio < 1);
+		checkArgument(factory.getCmCounterBits() == COUNTER_BITS, "Only 4-bit counters are supported.");
+		checkArgument(factory.getBloomAgingPeriodNanos() == 0 && factory.getCmAgingPeriodNanos() == 0,
+				"Aging by time isn't supported.");
+		checkArgument(!factory.getCoordinatedAging(), "Coordinated aging isn't supported.");
+		checkArgument(!factory.getKeyedSpreading() && !factory.getAutoSizing(),
+				"Keyed spreading and auto-sizing aren't supported.");
+		bloomFullReset = factory.getBloomFullReset();
+		cmFullReset = factory.getCmFullReset();
+		conservative = factory.getCmConservative();
+
+		bloomProbedWords = BloomSizing.probedWords(factory.getBloomFpp());
+		bloomWords = MyBloomFilter.tableLength(factory.getBloomExpectedInsertions(),
+				BloomSizing.bitsPerElement(factory.getBloomFpp()));
+		bloomShift = Long.numberOfLeadingZeros(bloomWords - 1);
+		cmWords = MyCountMinFrequency.tableLength(
+				(long) (factory.getCmCountersMultiplier() * factory.getCmExpectedInsertions()), COUNTER_BITS);
+		cmShift = Long.numberOfLeadingZeros(cmWords - 1);
+		cmShiftMask = Long.SIZE - COUNTER_BITS;
+		checkArgument(((long) bloomWords + cmWords) * maxTenants <= Integer.MAX_VALUE - 8, "The arena would be too big.");
+		slabWords = bloomWords + cmWords;
+		maxBloomOccupancy = MyBloomFilter.maxOccupancy(bloomOccupancyRatio, bloomWords);
+		maxCmOccupancy = MyCountMinFrequency.maxOccupancy(cmOccupancyRatio, cmWords, COUNTER_BITS);
+
+		arena = new long[slabWords * maxTenants];
+		bloomOccupancy = new long[maxTenants];
+		bloomCursor = new int[maxTenants];
+		cmOccupancy = new long[maxTenants];
+		cmCursor = new int[maxTenants];
+		live = new boolean[maxTenants];
+		free = new int[maxTenants];
+		for (int i = 0; i < maxTenants; i++) free[i] = maxTenants - 1 - i;
+		freeCount = maxTenants;
+	}
+
+	/** Returns the id of a new tenant with empty sketches. */
+	public int create() {
+		checkState(freeCount > 0, "No free slab left.");
+		final int tenant = free[--freeCount];
+		live[tenant] = true;
+		return tenant;
+	}
+
+	/**
+	 * Releases the slab of the tenant for reuse. This clears the slab, taking time linear in its
+	 * size, so that {@link #create} doesn't need to.
+	 */
+	public void destroy(int tenant) {
+		checkLive(tenant);
+		live[tenant] = false;
+		Arrays.fill(arena, base(tenant), base(tenant) + slabWords, 0L);
+		bloomOccupancy[tenant] = 0;
+		bloomCursor[tenant] = 0;
+		cmOccupancy[tenant] = 0;
+		cmCursor[tenant] = 0;
+		free[freeCount++] = tenant;
+	}
+
+	/** Returns the number of live tenants. */
+	public int size() {
+		return live.length - freeCount;
+	}
+
+	/** Works like {@link Frequency#increment}, but the key doesn't need to be spreaded. */
+	public void increment(int tenant, long key, int count) {
+		checkLive(tenant);
+		final long e = SpreadingFrequency.spread(key, randomSeed);
+		if (bloomPut(tenant, e)) --count;
+		if (count <= 0) return;
+		cmIncrement(tenant, e, Math.min(count, MyCountMin4Frequency.MAX_COUNT));
+	}
+
+	/** Works like {@link Frequency#frequency}, but the key doesn't need to be spreaded. */
+	public int frequency(int tenant, long key) {
+		checkLive(tenant);
+		final long e = SpreadingFrequency.spread(key, randomSeed);
+		// Adding one to account for the events lost in the filter.
+		return bloomContains(tenant, e) ? cmFrequency(tenant, e) + 1 : 0;
+	}
+
+	private boolean bloomPut(int tenant, long e) {
+		final int base = base(tenant);
+		int bitsSet = MyBloomFilter.setTwo(arena, MyBloomFilter.index(base, bloomShift, e), e);
+		for (int i = 1; i < bloomProbedWords; i++) {
+			e = MyBloomFilter.respread(e);
+			bitsSet += MyBloomFilter.setTwo(arena, MyBloomFilter.index(base, bloomShift, e), e);
+		}
+		bloomOccupancy[tenant] += bitsSet;
+		if (bloomOccupancy[tenant] >= maxBloomOccupancy) {
+			if (bloomFullReset) {
+				Arrays.fill(arena, base, base + bloomWords, 0L);
+				bloomOccupancy[tenant] = 0;
+			} else {
+				final int i = base + (bloomCursor[tenant]++ & (bloomWords - 1));
+				bloomOccupancy[tenant] -= MyBloomFilter.clearAt(arena, i);
+			}
+		}
+		return bitsSet > 0;
+	}
+
+	private boolean bloomContains(int tenant, long e) {
+		final int base = base(tenant);
+		if (!MyBloomFilter.getTwo(arena, MyBloomFilter.index(base, bloomShift, e), e)) return false;
+		for (int i = 1; i < bloomProbedWords; i++) {
+			e = MyBloomFilter.respread(e);
+			if (!MyBloomFilter.getTwo(arena, MyBloomFilter.index(base, bloomShift, e), e)) return false;
+		}
+		return true;
+	}
+
+	private void cmIncrement(int tenant, long e, int count) {
+		final int base = base(tenant) + bloomWords;
+		int delta;
+		if (conservative) {
+			final int oldFrequency = cmFrequency(tenant, e);
+			final int newFrequency = Math.min(oldFrequency + count, MyCountMin4Frequency.MAX_COUNT);
+			if (newFrequency == oldFrequency) return;
+			delta = cmMaximizeAt(base, e, newFrequency);
+			e = MyCountMinFrequency.respread1(e);
+			delta += cmMaximizeAt(base, e, newFrequency);
+			e = MyCountMinFrequency.respread2(e);
+			delta += cmMaximizeAt(base, e, newFrequency);
+			e = MyCountMinFrequency.respread3(e);
+			delta += cmMaximizeAt(base, e, newFrequency);
+		} else {
+			delta = cmIncrementAt(base, e, count);
+			e = MyCountMinFrequency.respread1(e);
+			delta += cmIncrementAt(base, e, count);
+			e = MyCountMinFrequency.respread2(e);
+			delta += cmIncrementAt(base, e, count);
+			e = MyCountMinFrequency.respread3(e);
+			delta += cmIncrementAt(base, e, count);
+		}
+		cmOccupancy[tenant] += delta;
+		if (cmOccupancy[tenant] >= maxCmOccupancy) {
+			if (cmFullReset) {
+				Arrays.fill(arena, base, base + cmWords, 0L);
+				cmOccupancy[tenant] = 0;
+			} else {
+				final int i = base + (cmCursor[tenant]++ & (cmWords - 1));
+				cmOccupancy[tenant] -= MyCountMin4Frequency.nibbleSum(
+						MyCountMinFrequency.halveAt(arena, i, MyCountMin4Frequency.RESET_MASK));
+			}
+		}
+	}
+
+	private int cmFrequency(int tenant, long e) {
+		final int base = base(tenant) + bloomWords;
+		int result = cmExtract(base, e);
+		e = MyCountMinFrequency.respread1(e);
+		result = Math.min(result, cmExtract(base, e));
+		e = MyCountMinFrequency.respread2(e);
+		result = Math.min(result, cmExtract(base, e));
+		e = MyCountMinFrequency.respread3(e);
+		result = Math.min(result, cmExtract(base, e));
+		return result;
+	}
+
+	private int cmIncrementAt(int base, long e, int count) {
+		return MyCountMinFrequency.incrementAt(arena, MyCountMinFrequency.index(base, cmShift, e),
+				MyCountMinFrequency.shift(cmShiftMask, e), count, MyCountMin4Frequency.MAX_COUNT);
+	}
+
+	private int cmMaximizeAt(int base, long e, int value) {
+		return MyCountMinFrequency.maximizeAt(arena, MyCountMinFrequency.index(base, cmShift, e),
+				MyCountMinFrequency.shift(cmShiftMask, e), value, MyCountMin4Frequency.MAX_COUNT);
+	}
+
+	private int cmExtract(int base, long e) {
+		return MyCountMinFrequency.extractAt(arena, MyCountMinFrequency.index(base, cmShift, e),
+				MyCountMinFrequency.shift(cmShiftMask, e), MyCountMin4Frequency.MAX_COUNT);
+	}
+
+	private int base(int tenant) {
+		return tenant * slabWords;
+	}
+
+	private void checkLive(int tenant) {
+		checkElementIndex(tenant, live.length);
+		if (!live[tenant]) throw new IllegalArgumentException("Tenant " + tenant + " isn't live.");
+	}
+}
@@ -0,0 +1,89 @@
+package frequency;
+
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class TenantSketchStoreTest extends TestCase {
+	private static final int TENANTS = 3;
+	private static final int OPERATIONS = 200000;
+
+	public void testMatchesChain() {
+		for (final boolean bloomFullReset : new boolean[] {false, true}) {
+			for (final boolean cmFullReset : new boolean[] {false, true}) {
+				for (final boolean conservative : new boolean[] {false, true}) {
+					// Small sketches, so that they reset often.
+					checkMatchesChain(1000, bloomFullReset, cmFullReset, conservative);
+				}
+			}
+		}
+	}
+
+	/** The smallest tables must have the same size as those of the separate classes. */
+	public void testTinySketchesMatchChain() {
+		for (final long expectedInsertions : new long[] {0, 1, 2}) {
+			checkMatchesChain(expectedInsertions, false, false, false);
+		}
+	}
+
+	private static void checkMatchesChain(long expectedInsertions, boolean bloomFullReset, boolean cmFullReset,
+			boolean conservative) {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setRandomSeed(0x23456789);
+		factory.setBloomExpectedInsertions(expectedInsertions);
+		factory.setBloomOccupancyRatio(0.5);
+		factory.setBloomFullReset(bloomFullReset);
+		factory.setCmExpectedInsertions(expectedInsertions);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		factory.setCmFullReset(cmFullReset);
+		factory.setCmConservative(conservative);
+
+		final TenantSketchStore store = new TenantSketchStore(factory, TENANTS);
+		final int[] tenants = new int[TENANTS];
+		final Frequency[] chains = new Frequency[TENANTS];
+		for (int t = 0; t < TENANTS; t++) {
+			tenants[t] = store.create();
+			chains[t] = new SpreadingFrequency(
+					new FilteredFrequency(new MyCountMin4Frequency(factory), new MyBloomFilter(factory)),
+					factory.getRandomSeed());
+		}
+		final String name = expectedInsertions + " " + bloomFullReset + " " + cmFullReset + " " + conservative;
+		final SplittableRandom random = new SplittableRandom(9599);
+		for (int n = 0; n < OPERATIONS; n++) {
+			final int t = random.nextInt(TENANTS);
+			final long key = random.nextInt(5000);
+			if (random.nextInt(4) == 0) {
+				assertEquals(name, chains[t].frequency(key), store.frequency(tenants[t], key));
+			} else {
+				final int count = 1 + random.nextInt(3);
+				chains[t].increment(key, count);
+				store.increment(tenants[t], key, count);
+			}
+		}
+	}
+
+	public void testRejectsUnsupportedOptions() {
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setBloomExpectedInsertions(1000);
+		factory.setBloomOccupancyRatio(0.5);
+		factory.setCmExpectedInsertions(1000);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		factory.setCmCounterBits(8);
+		try {
+			new TenantSketchStore(factory, TENANTS);
+			fail();
+		} catch (final IllegalArgumentException expected) {
+			// expected
+		}
+		factory.setCmCounterBits(4);
+		factory.setCmAgingPeriodNanos(1000000);
+		try {
+			new TenantSketchStore(factory, TENANTS);
+			fail();
+		} catch (final IllegalArgumentException expected) {
+			// expected
+		}
+	}
+}
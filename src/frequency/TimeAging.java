@@ -0,0 +1,50 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Paces the aging of a table by a clock instead of by its occupancy: every word gets aged once per
+ * period. Every call ages the words that got due since the previous one, so that the aging is
+ * spread over the period under steady traffic and the half-life doesn't depend on the traffic.
+ *
+ * <p>After an idle time, the words owed are at most every word once, as aging a word repeatedly
+ * would be pointless. A single call ages at most {@value #MAX_CHUNK} words and leaves the rest to
+ * the following calls, so that no call does a full pass over a large table.
+ */
+@NotThreadSafe
+final class TimeAging {
+	/** The maximum number of words aged per call. */
+	static final int MAX_CHUNK = 64;
+
+	private final Ticker ticker;
+	private final long periodNanos;
+
+	/** The time when the next word is due. */
+	private long nextNanos;
+
+	TimeAging(Ticker ticker, @Nonnegative long periodNanos) {
+		checkArgument(periodNanos > 0);
+		this.ticker = ticker;
+		this.periodNanos = periodNanos;
+		nextNanos = ticker.read();
+	}
+
+	/** Returns the number of words to be aged now, usually zero, at most {@link #MAX_CHUNK}. */
+	int due(int tableLength) {
+		final long now = ticker.read();
+		if (now - nextNanos < 0) return 0;
+		// The backlog is capped at a full sweep.
+		if (now - nextNanos >= periodNanos) nextNanos = now - periodNanos;
+		final long nanosPerWord = Math.max(periodNanos / tableLength, 1);
+		final long owed = (now - nextNanos) / nanosPerWord + 1;
+		final int result = (int) Math.min(owed, Math.min(tableLength, MAX_CHUNK));
+		// What's left stays owed, as the time advances by the words aged only.
+		nextNanos += result * nanosPerWord;
+		return result;
+	}
+}
@@ -0,0 +1,267 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Records a sample of the spread hashes fed to a sketch into rotating memory-mapped files, so that
+ * the exact key stream can be replayed offline by {@link TraceReplay}. Use it via
+ * {@link RecordingFrequency} or {@link MyFrequencyFactory#setTraceRecorder}.
+ *
+ * <p>Every thread collects the events in its own buffer and copies a full buffer as a chunk into the
+ * current file, reserving the space by a single atomic addition. When the file is full, the next one,
+ * which gets created in advance by a background thread, takes over. If it's not ready yet, the chunk
+ * gets dropped and counted, so that recording never blocks nor does any I/O besides page faults.
+ *
+ * <p>A file starts with a header of two longs, the {@link #MAGIC} and the flags, followed by the
+ * chunks, each consisting of the number of events and the events, each consisting of the timestamp
+ * as given by {@link System#nanoTime()}, if enabled, and the hash. A zero chunk length terminates
+ * the file. All longs are little-endian. An increment by more than one gets recorded as that many
+ * events, so that the replay, which increments by one per event, sees the same counts.
+ *
+ * <p>A file full of chunks gets forced to the disk by the background thread once it's rotated out.
+ *
+ * <p>The hashes get sampled by their value, so a key gets recorded either always or never, which
+ * keeps the per-key frequencies intact.
+ */
+@ThreadSafe
+public final class TraceRecorder implements AutoCloseable {
+	static final long MAGIC = 0x3165636172742e66L;
+	static final long FLAG_TIMESTAMPS = 1;
+	static final int HEADER_BYTES = 2 * Long.BYTES;
+	static final String FILE_PREFIX = "trace-";
+	static final String FILE_SUFFIX = ".bin";
+
+	private static final int BUFFER_LONGS = 1 << 10;
+
+	/** A mapped file with the space reserved so far. */
+	private static final class Segment {
+		Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		final MappedByteBuffer buffer;
+		final AtomicInteger reserved = new AtomicInteger(HEADER_BYTES);
+	}
+
+	/** The buffer of a single thread. */
+	private final class Buffer {
+		final long[] data = new long[BUFFER_LONGS];
+		int size;
+	}
+
+	private final Path directory;
+	private final int fileBytes;
+	/** The largest remixed hash to be sampled, unsigned. */
+	private final long sampleThreshold;
+	private final boolean timestamps;
+
+	private final ExecutorService allocator;
+	private final ThreadLocal<Buffer> buffers;
+	private final Queue<Buffer> allBuffers = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean rotating = new AtomicBoolean();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder recorded = new LongAdder();
+	private int files;
+
+	private volatile Segment current;
+	/** The last segment rotated out, which recording threads may have written to after its force. */
+	@Nullable private volatile Segment previous;
+	@Nullable private volatile Future<Segment> next;
+	private volatile boolean closed;
+
+	/**
+	 * @param directory the directory for the files, which should contain no older traces
+	 * @param fileBytes the size of each file
+	 * @param sampleShift the binary logarithm of the ratio of all keys to the recorded ones
+	 * @param timestamps whether to record the time of each event
+	 */
+	public TraceRecorder(Path directory, int fileBytes, int sampleShift, boolean timestamps) throws IOException {
+		this.directory = checkNotNull(directory);
+		checkArgument(fileBytes >= HEADER_BYTES + 2 * Long.BYTES * (BUFFER_LONGS + 1), "Too small files.");
+		checkArgument(0 <= sampleShift && sampleShift < 64);
+		this.fileBytes = fileBytes;
+		sampleThreshold = -1L >>> sampleShift;
+		this.timestamps = timestamps;
+		Files.createDirectories(directory);
+		current = newSegment();
+		allocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override public Thread newThread(Runnable r) {
+				final Thread result = new Thread(r, "trace-recorder");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+		next = prepareSegment();
+		buffers = new ThreadLocal<Buffer>() {
+			@Override protected Buffer initialValue() {
+				final Buffer result = new Buffer();
+				allBuffers.add(result);
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Records the event if the hash gets sampled.
+	 *
+	 * @param e the spread hash
+	 */
+	public void record(long e) {
+		if (!isSampled(e)) return;
+		final Buffer buffer = buffers.get();
+		final long[] data = buffer.data;
+		if (timestamps) data[buffer.size++] = System.nanoTime();
+		data[buffer.size++] = e;
+		if (buffer.size == data.length) flush(buffer);
+	}
+
+	/**
+	 * Records the event as often as given, if the hash gets sampled.
+	 *
+	 * @param e the spread hash
+	 * @param count the number of occurrences, nothing gets recorded unless it's positive
+	 */
+	public void record(long e, int count) {
+		if (!isSampled(e)) return;
+		for (int i = 0; i < count; i++) record(e);
+	}
+
+	boolean isSampled(long e) {
+		// Remixing, as the sketches use the lowest and the topmost bits for indexing.
+		return Long.compareUnsigned(e * 0x9e3779b97f4a7c15L, sampleThreshold) <= 0;
+	}
+
+	/** Returns the number of events lost due to a file not being ready in time or to closing. */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/** Returns the number of events written to the files. */
+	public long recorded() {
+		return recorded.sum();
+	}
+
+	private void flush(Buffer buffer) {
+		final int longs = buffer.size;
+		buffer.size = 0;
+		final int events = timestamps ? longs / 2 : longs;
+		if (closed) {
+			dropped.add(events);
+			return;
+		}
+		final int bytes = (longs + 1) * Long.BYTES;
+		for (int attempt = 0; attempt < 2; attempt++) {
+			final Segment segment = current;
+			final int offset = segment.reserved.getAndAdd(bytes);
+			// Keeping space for the terminating zero.
+			if (offset + bytes + Long.BYTES <= fileBytes) {
+				final MappedByteBuffer mapped = segment.buffer;
+				mapped.putLong(offset, events);
+				for (int i = 0; i < longs; i++) mapped.putLong(offset + (i + 1) * Long.BYTES, buffer.data[i]);
+				recorded.add(events);
+				return;
+			}
+			// Prevent the counter from overflowing.
+			segment.reserved.set(fileBytes);
+			if (!rotate(segment)) break;
+		}
+		dropped.add(events);
+	}
+
+	/** Replaces the full segment by the prepared one, returns false if it's not ready. */
+	private boolean rotate(Segment full) {
+		if (current != full) return true;
+		if (!rotating.compareAndSet(false, true)) return false;
+		try {
+			if (current != full) return true;
+			final Future<Segment> prepared = next;
+			if (prepared == null || !prepared.isDone()) return false;
+			current = prepared.get();
+			previous = full;
+			allocator.execute(new Runnable() {
+				@Override public void run() {
+					// Writers which reserved their space before the rotation may still be copying.
+					full.buffer.force();
+				}
+			});
+			next = prepareSegment();
+			return true;
+		} catch (final Exception e) {
+			return false;
+		} finally {
+			rotating.set(false);
+		}
+	}
+
+	private Future<Segment> prepareSegment() {
+		return allocator.submit(new Callable<Segment>() {
+			@Override public Segment call() {
+				return newSegment();
+			}
+		});
+	}
+
+	private Segment newSegment() {
+		final Path path;
+		synchronized (this) {
+			path = directory.resolve(String.format("%s%06d%s", FILE_PREFIX, files++, FILE_SUFFIX));
+		}
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putLong(0, MAGIC);
+			buffer.putLong(Long.BYTES, timestamps ? FLAG_TIMESTAMPS : 0);
+			return new Segment(buffer);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Flushes the buffers of all threads and forces the files to the disk, i.e., the current one
+	 * and the pending forces of the rotated ones. The recording threads must have stopped, i.e.,
+	 * their last {@link #record} must happen before this.
+	 */
+	@Override public void close() throws IOException {
+		for (final Buffer buffer : allBuffers) {
+			if (buffer.size > 0) flush(buffer);
+		}
+		closed = true;
+		current.buffer.force();
+		final Segment last = previous;
+		if (last != null) last.buffer.force();
+		// Not shutdownNow, as the queued forces must run.
+		allocator.shutdown();
+		try {
+			allocator.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// The prepared file stays empty, which is fine for the replay.
+	}
+}
@@ -0,0 +1,142 @@
+package frequency;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import junit.framework.TestCase;
+
+public class TraceRecorderTest extends TestCase {
+	private final SplittableRandom random = new SplittableRandom(9599);
+	private final List<Path> directories = new ArrayList<>();
+
+	public void testExactReplay() throws IOException {
+		final Path directory = newDirectory();
+		final long[] keys = new long[100000];
+		final TraceRecorder recorder = new TraceRecorder(directory, 1 << 20, 0, false);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextLong();
+			recorder.record(keys[i]);
+		}
+		recorder.close();
+		assertEquals(keys.length, recorder.recorded());
+		final List<Long> replayed = new ArrayList<>();
+		assertEquals(keys.length, TraceReplay.replay(directory, new TraceReplay.TraceConsumer() {
+			@Override public void accept(long nanos, long e) {
+				assertEquals(0, nanos);
+				replayed.add(e);
+			}
+		}));
+		for (int i = 0; i < keys.length; i++) assertEquals(keys[i], replayed.get(i).longValue());
+	}
+
+	public void testCounts() throws IOException {
+		final Path directory = newDirectory();
+		final TraceRecorder recorder = new TraceRecorder(directory, 1 << 20, 0, false);
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setCmExpectedInsertions(1 << 10);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		final Frequency frequency = new RecordingFrequency(factory.newCountMin(), recorder);
+		frequency.increment(1, 3);
+		frequency.increment(2, 0);
+		frequency.frequencyThenIncrement(3, 2);
+		frequency.frequencyThenIncrement(4, 0);
+		recorder.close();
+		final List<Long> replayed = new ArrayList<>();
+		TraceReplay.replay(directory, new TraceReplay.TraceConsumer() {
+			@Override public void accept(long nanos, long e) {
+				replayed.add(e);
+			}
+		});
+		// Every occurrence, but nothing for the increments by zero.
+		assertEquals(Arrays.asList(1L, 1L, 1L, 3L, 3L), replayed);
+	}
+
+	public void testRotationAndTimestamps() throws IOException {
+		final Path directory = newDirectory();
+		final int count = 1 << 20;
+		final TraceRecorder recorder = new TraceRecorder(directory, 1 << 16, 0, true);
+		for (int i = 0; i < count; i++) {
+			recorder.record(random.nextLong());
+			// Give the allocating thread a chance on a single core.
+			if ((i & 0xFFF) == 0) Thread.yield();
+		}
+		recorder.close();
+		assertEquals(count, recorder.recorded() + recorder.dropped());
+		assertTrue(TraceReplay.files(directory).size() > 10);
+		final long[] last = new long[1];
+		assertEquals(recorder.recorded(), TraceReplay.replay(directory, new TraceReplay.TraceConsumer() {
+			@Override public void accept(long nanos, long e) {
+				assertTrue(nanos >= last[0]);
+				last[0] = nanos;
+			}
+		}));
+	}
+
+	public void testSamplingAndFactory() throws IOException {
+		final Path directory = newDirectory();
+		final TraceRecorder recorder = new TraceRecorder(directory, 1 << 20, 4, false);
+		final MyFrequencyFactory factory = new MyFrequencyFactory();
+		factory.setBloomExpectedInsertions(1 << 16);
+		factory.setBloomOccupancyRatio(0.5);
+		factory.setCmExpectedInsertions(1 << 16);
+		factory.setCmCountersMultiplier(1);
+		factory.setCmOccupancyRatio(0.5);
+		factory.setTraceRecorder(recorder);
+		final Frequency frequency = factory.newFrequency();
+		final int count = 1 << 16;
+		for (int i = 0; i < count; i++) {
+			final long key = random.nextInt(1000);
+			frequency.increment(key, 1);
+		}
+		recorder.close();
+		// Every sampled key got recorded with all its occurrences.
+		final Frequency replayed = factory.newCountMin();
+		final long events = TraceReplay.replay(directory, replayed);
+		assertEquals(recorder.recorded(), events);
+		assertEquals(count / 16.0, events, count / 16.0 * 0.5);
+		for (long key = 0; key < 1000; key++) {
+			final long e = SpreadingFrequency.spread(key, factory.getRandomSeed() | 1);
+			if (recorder.isSampled(e)) {
+				assertTrue(replayed.frequency(e) > 0);
+			} else {
+				assertEquals(0, replayed.frequency(e));
+			}
+		}
+	}
+
+	public void testBenchmark() throws IOException {
+		final long[] keys = new long[1 << 16];
+		for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong();
+		System.out.println("sampleShift\tns/op");
+		for (final int sampleShift : new int[] {0, 4, 10}) {
+			final TraceRecorder recorder = new TraceRecorder(newDirectory(), 1 << 24, sampleShift, false);
+			long nanos = 0;
+			for (int round = 0; round < 10; round++) {
+				final long start = System.nanoTime();
+				for (final long key : keys) recorder.record(key);
+				nanos = System.nanoTime() - start;
+			}
+			recorder.close();
+			System.out.format("%d\t%5.1f\n", sampleShift, (double) nanos / keys.length);
+		}
+	}
+
+	private Path newDirectory() throws IOException {
+		final Path result = Files.createTempDirectory("trace");
+		directories.add(result);
+		return result;
+	}
+
+	@Override protected void tearDown() throws IOException {
+		for (final Path directory : directories) {
+			for (final Path file : TraceReplay.files(directory)) Files.delete(file);
+			Files.delete(directory);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package frequency;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feeds the traces written by a {@link TraceRecorder} into a sketch as fast as possible. The traces
+ * contain spread hashes, so the target must be a chain taking them, e.g., one without the
+ * {@link SpreadingFrequency}.
+ */
+public final class TraceReplay {
+	/** Receives the events of a trace. */
+	public interface TraceConsumer {
+		/**
+		 * @param nanos the time of the event, or zero if not recorded
+		 * @param e the spread hash
+		 */
+		void accept(long nanos, long e);
+	}
+
+	private TraceReplay() {
+	}
+
+	/**
+	 * Increments the target by one for every event of all traces in the directory.
+	 *
+	 * @return the number of events
+	 */
+	public static long replay(Path directory, final Frequency target) throws IOException {
+		return replay(directory, new TraceConsumer() {
+			@Override public void accept(long nanos, long e) {
+				target.increment(e, 1);
+			}
+		});
+	}
+
+	/**
+	 * Puts the hash of every event of all traces in the directory into the target.
+	 *
+	 * @return the number of events
+	 */
+	public static long replay(Path directory, final BloomFilter target) throws IOException {
+		return replay(directory, new TraceConsumer() {
+			@Override public void accept(long nanos, long e) {
+				target.put(e);
+			}
+		});
+	}
+
+	/**
+	 * Passes all events of all traces in the directory to the consumer in the order of the files.
+	 *
+	 * @return the number of events
+	 */
+	public static long replay(Path directory, TraceConsumer consumer) throws IOException {
+		long result = 0;
+		for (final Path file : files(directory)) result += replayFile(file, consumer);
+		return result;
+	}
+
+	/** Returns the trace files of the directory in the order they were written. */
+	static List<Path> files(Path directory) throws IOException {
+		final List<Path> result = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				TraceRecorder.FILE_PREFIX + "*" + TraceRecorder.FILE_SUFFIX)) {
+			for (final Path file : stream) result.add(file);
+		}
+		// The numbers have a fixed width.
+		Collections.sort(result);
+		return result;
+	}
+
+	private static long replayFile(Path file, TraceConsumer consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final LongBuffer longs = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			checkArgument(longs.get(0) == TraceRecorder.MAGIC, "Not a trace: %s", file);
+			final boolean timestamps = (longs.get(1) & TraceRecorder.FLAG_TIMESTAMPS) != 0;
+			long result = 0;
+			int i = TraceRecorder.HEADER_BYTES / Long.BYTES;
+			while (i < longs.limit()) {
+				final int events = (int) longs.get(i++);
+				if (events == 0) break;
+				if (timestamps) {
+					for (final int end = i + 2 * events; i < end; i += 2) consumer.accept(longs.get(i), longs.get(i + 1));
+				} else {
+					for (final int end = i + events; i < end; i++) consumer.accept(0, longs.get(i));
+				}
+				result += events;
+			}
+			return result;
+		}
+	}
+}